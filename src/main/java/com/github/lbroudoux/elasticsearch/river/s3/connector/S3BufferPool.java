@@ -0,0 +1,85 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+/**
+ * A pool of fixed size byte arrays used as chunks of downloaded contents. Chunks given back
+ * are kept for next downloads, up to a maximum number of pooled bytes, so that downloading
+ * many files produces almost no garbage. Thread safe.
+ * @author laurent
+ */
+public class S3BufferPool{
+
+   public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+   private final int chunkSize;
+   private final int maxPooledChunks;
+   private final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+   private final AtomicInteger pooledChunks = new AtomicInteger();
+   private final AtomicLong allocatedChunks = new AtomicLong();
+
+   /**
+    * @param chunkSize Size of chunks in bytes
+    * @param maxPooledBytes Maximum number of bytes kept into pool
+    */
+   public S3BufferPool(int chunkSize, long maxPooledBytes){
+      this.chunkSize = chunkSize;
+      this.maxPooledChunks = (int)Math.min(Integer.MAX_VALUE, maxPooledBytes / chunkSize);
+   }
+
+   /** @return A chunk from pool, or a new one if pool is empty */
+   public byte[] take(){
+      byte[] chunk = chunks.poll();
+      if (chunk != null){
+         pooledChunks.decrementAndGet();
+         return chunk;
+      }
+      allocatedChunks.incrementAndGet();
+      return new byte[chunkSize];
+   }
+
+   /** Give back a chunk that is not used anymore. It is kept only if pool is not full. */
+   public void recycle(byte[] chunk){
+      if (chunk.length != chunkSize){
+         return;
+      }
+      if (pooledChunks.incrementAndGet() <= maxPooledChunks){
+         chunks.offer(chunk);
+      } else {
+         pooledChunks.decrementAndGet();
+      }
+   }
+
+   public int getChunkSize(){
+      return chunkSize;
+   }
+
+   /** @return Number of chunks currently into pool */
+   public int getPooledChunks(){
+      return pooledChunks.get();
+   }
+
+   /** @return Number of chunks allocated since pool creation, because pool was empty */
+   public long getAllocatedChunks(){
+      return allocatedChunks.get();
+   }
+}
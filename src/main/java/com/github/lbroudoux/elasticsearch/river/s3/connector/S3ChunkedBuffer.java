@@ -0,0 +1,170 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+/**
+ * Content held into chunks taken from a {@link S3BufferPool}. Content is copied once, from
+ * network into chunks, and is then read through a stream that is a view on chunks. Closing
+ * buffer (or its stream) gives chunks back to pool. Reads and close are done under buffer lock,
+ * as an abandoned parse may still read the stream while another thread closes it.
+ * @author laurent
+ */
+public class S3ChunkedBuffer implements Closeable{
+
+   private final S3BufferPool pool;
+   private final List<byte[]> chunks;
+   private final long length;
+   private volatile boolean released = false;
+
+   private S3ChunkedBuffer(S3BufferPool pool, List<byte[]> chunks, long length){
+      this.pool = pool;
+      this.chunks = chunks;
+      this.length = length;
+   }
+
+   /**
+    * Read a stream until its end into pooled chunks.
+    * @param in The stream to read, it is not closed
+    * @param contentLength Expected length of content, used for sizing chunks list. -1 if unknown.
+    * @param pool The pool to take chunks from
+    * @return The buffered content
+    * @throws IOException if stream cannot be read
+    */
+   public static S3ChunkedBuffer read(InputStream in, long contentLength, S3BufferPool pool) throws IOException{
+      int chunkSize = pool.getChunkSize();
+      List<byte[]> chunks = new ArrayList<byte[]>(contentLength > 0 ? (int)((contentLength + chunkSize - 1) / chunkSize) : 16);
+      long length = 0;
+      try {
+         byte[] chunk = null;
+         int offset = chunkSize;
+         while (true){
+            // Content length is known, no need for reading end of stream into a new chunk.
+            if (contentLength >= 0 && length == contentLength){
+               break;
+            }
+            if (offset == chunkSize){
+               chunk = pool.take();
+               chunks.add(chunk);
+               offset = 0;
+            }
+            int len = in.read(chunk, offset, chunkSize - offset);
+            if (len < 0){
+               break;
+            }
+            offset += len;
+            length += len;
+         }
+      } catch (IOException ioe){
+         for (byte[] chunk : chunks){
+            pool.recycle(chunk);
+         }
+         throw ioe;
+      }
+      if (contentLength >= 0 && length != contentLength){
+         for (byte[] chunk : chunks){
+            pool.recycle(chunk);
+         }
+         throw new IOException("Content length is " + length + " bytes while " + contentLength + " were expected");
+      }
+      return new S3ChunkedBuffer(pool, chunks, length);
+   }
+
+   /** @return Length of content in bytes */
+   public long length(){
+      return length;
+   }
+
+   /** @return A stream reading content directly from chunks. Closing it releases buffer. */
+   public InputStream newInputStream(){
+      return new ChunksInputStream();
+   }
+
+   @Override
+   public synchronized void close(){
+      if (!released){
+         released = true;
+         for (byte[] chunk : chunks){
+            pool.recycle(chunk);
+         }
+         chunks.clear();
+      }
+   }
+
+   /** A stream over chunks, without any intermediate copy. */
+   private class ChunksInputStream extends InputStream{
+
+      private long position = 0;
+
+      @Override
+      public int read() throws IOException{
+         synchronized (S3ChunkedBuffer.this){
+            if (position >= length){
+               return -1;
+            }
+            if (released){
+               throw new IOException("Buffer has been released");
+            }
+            int chunkSize = pool.getChunkSize();
+            int b = chunks.get((int)(position / chunkSize))[(int)(position % chunkSize)] & 0xff;
+            position++;
+            return b;
+         }
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException{
+         synchronized (S3ChunkedBuffer.this){
+            if (position >= length){
+               return -1;
+            }
+            if (released){
+               throw new IOException("Buffer has been released");
+            }
+            int chunkSize = pool.getChunkSize();
+            int offsetInChunk = (int)(position % chunkSize);
+            int count = (int)Math.min(Math.min(len, chunkSize - offsetInChunk), length - position);
+            System.arraycopy(chunks.get((int)(position / chunkSize)), offsetInChunk, b, off, count);
+            position += count;
+            return count;
+         }
+      }
+
+      @Override
+      public long skip(long n){
+         long skipped = Math.max(0, Math.min(n, length - position));
+         position += skipped;
+         return skipped;
+      }
+
+      @Override
+      public int available(){
+         return (int)Math.min(Integer.MAX_VALUE, length - position);
+      }
+
+      @Override
+      public void close(){
+         S3ChunkedBuffer.this.close();
+      }
+   }
+}
@@ -18,18 +18,28 @@
  */
 package com.github.lbroudoux.elasticsearch.river.s3.connector;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.s3.model.*;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
@@ -43,6 +53,8 @@ public class S3Connector{
   // This will only work if you can check presence in ES easily
   final int MAX_NEW_RESULTS_TO_INDEX_ON_RUN = 10000;
 
+   private static final String DELIMITER = "/";
+
    private static final ESLogger logger = Loggers.getLogger(S3Connector.class);
    
    private final String accessKey;
@@ -50,6 +62,15 @@ public class S3Connector{
    private String bucketName;
    private String pathPrefix;
    private AmazonS3Client s3Client;
+   private int listingConcurrency = 1;
+   private List<String> listingSplitPoints;
+   private String inventoryLocation;
+   private int inventoryConcurrency = 1;
+   private long rangedDownloadThreshold = -1;
+   private long spoolThreshold = 1024 * 1024;
+   private S3RangedDownload rangedDownload;
+   private ExecutorService rangedDownloadExecutor;
+   private S3BufferPool bufferPool = new S3BufferPool(S3BufferPool.DEFAULT_CHUNK_SIZE, 0);
    
    public S3Connector(String accessKey, String secretKey){
       this.accessKey = accessKey;
@@ -73,15 +94,163 @@ public class S3Connector{
    }
    
    /**
-    * Select and retrieves summaries of object into bucket and of given path prefix
-    * that have modification date younger than lastScanTime.
+    * Set the number of partitions of the bucket that may be listed concurrently.
+    * @param listingConcurrency Number of listing threads. 1 means sequential listing.
+    */
+   public void setListingConcurrency(int listingConcurrency){
+      this.listingConcurrency = listingConcurrency;
+   }
+
+   /**
+    * Set the ordered keys used to split bucket listing into partitions. If null or empty,
+    * partitions are discovered from common prefixes of path prefix.
+    * @param listingSplitPoints Partition boundaries (each key is the inclusive end of a partition)
+    */
+   public void setListingSplitPoints(List<String> listingSplitPoints){
+      this.listingSplitPoints = listingSplitPoints;
+   }
+
+   /**
+    * Download objects above a size threshold as concurrent byte range GETs.
+    * @param threshold Size in bytes from which objects are downloaded by ranges, -1 for never
+    * @param partSize Size in bytes of byte ranges
+    * @param concurrency Number of ranges of an object downloaded at the same time
+    */
+   public void setRangedDownload(long threshold, long partSize, int concurrency){
+      this.rangedDownloadThreshold = threshold;
+      if (threshold > 0 && concurrency > 1){
+         rangedDownloadExecutor = EsExecutors.newCached(60, TimeUnit.SECONDS, EsExecutors.daemonThreadFactory("s3_ranged_get"));
+         rangedDownload = new S3RangedDownload(s3Client, rangedDownloadExecutor, partSize, concurrency);
+      }
+   }
+
+   /**
+    * Set the size up to which {@link #getSpooledContent(S3ObjectSummary)} keeps content into memory.
+    * @param spoolThreshold Size in bytes from which content is spooled to a temporary file
+    */
+   public void setSpoolThreshold(long spoolThreshold){
+      this.spoolThreshold = spoolThreshold;
+   }
+
+   /**
+    * Set the maximum number of bytes of download buffers kept for reuse.
+    * @param pooledBytes Number of bytes, should be about the number of bytes downloaded at the same time
+    */
+   public void setBufferPoolSize(long pooledBytes){
+      this.bufferPool = new S3BufferPool(S3BufferPool.DEFAULT_CHUNK_SIZE, pooledBytes);
+   }
+
+   /** Release resources held by connector. */
+   public void close(){
+      if (rangedDownloadExecutor != null){
+         rangedDownloadExecutor.shutdownNow();
+      }
+   }
+
+   /**
+    * Set the location of Amazon S3 Inventory reports of bucket, used instead of listing.
+    * @param inventoryLocation An s3://bucket/key url or a local path, of a manifest.json or of an inventory
+    *    configuration folder (whose latest report is used). Null if there's no inventory.
+    */
+   public void setInventoryLocation(String inventoryLocation){
+      this.inventoryLocation = inventoryLocation;
+   }
+
+   /** @return True if bucket can be scanned from its inventory */
+   public boolean hasInventory(){
+      return inventoryLocation != null;
+   }
+
+   /**
+    * Set the number of inventory data files that may be read concurrently.
+    * @param inventoryConcurrency Number of reading threads
+    */
+   public void setInventoryConcurrency(int inventoryConcurrency){
+      this.inventoryConcurrency = inventoryConcurrency;
+   }
+
+   /**
+    * Select summaries of object into bucket and of given path prefix from the latest Amazon S3 Inventory
+    * report rather than by listing bucket. Data files of report are streamed and parsed concurrently, picked
+    * summaries and keys being handed to listener page by page exactly like a listing does.
     * @param lastScanTime Last modification date filter
-    * @return Summaries of picked objects.
+    * @param listener The listener receiving picked summaries and listed keys
+    * @return Outcome of the scan, whose scan time is the time inventory was taken. Null if there's no report
+    *    taken after lastScanTime, bucket should then be listed.
+    * @throws Exception if report cannot be read or listener fails handling a page
     */
-   public S3ObjectSummaries getObjectSummaries(String riverName, Long lastScanTime, boolean initialScan, String initialScanBookmark, boolean trackS3Deletions) {
-      List<String> keys = new ArrayList<String>();
-      List<S3ObjectSummary> result = new ArrayList<S3ObjectSummary>();
+   public S3ObjectSummaries getObjectSummariesFromInventory(final String riverName, Long lastScanTime, boolean initialScan,
+         boolean trackS3Deletions, S3ObjectSummaryListener listener) throws Exception {
+      final S3InventoryReader reader = new S3InventoryReader(s3Client, inventoryLocation);
+      final S3InventoryManifest manifest = reader.readManifest();
+      if (manifest == null){
+         logger.info("{}: no inventory report found into {}", riverName, inventoryLocation);
+         return null;
+      }
+      if (manifest.getSourceBucket() != null && !manifest.getSourceBucket().equals(bucketName)){
+         logger.warn("{}: inventory {} is the one of bucket {}, ignoring it", riverName, reader.getManifestLocation(),
+               manifest.getSourceBucket());
+         return null;
+      }
+      if (!initialScan && lastScanTime != null && manifest.getCreationTimestamp() <= lastScanTime){
+         logger.info("{}: latest inventory {} is older than last scan", riverName, reader.getManifestLocation());
+         return null;
+      }
+      if (initialScan) {
+         trackS3Deletions = false;
+      }
+      final long pickSince = (lastScanTime == null || initialScan) ? 0L : lastScanTime;
+      final boolean trackKeys = trackS3Deletions;
+      final S3ObjectSummaryListener safeListener = inventoryConcurrency > 1 ? new SynchronizedListener(listener) : listener;
+      logger.info("{}: reading {} files of inventory {} with concurrency {}", riverName, manifest.getFiles().size(),
+            reader.getManifestLocation(), inventoryConcurrency);
+
+      long keyCount = 0;
+      long pickedCount = 0;
+      ExecutorService executor = EsExecutors.newFixed(Math.max(1, Math.min(inventoryConcurrency, manifest.getFiles().size())), -1,
+            EsExecutors.daemonThreadFactory("s3_inventory"));
+      try {
+         CompletionService<long[]> completionService = new ExecutorCompletionService<long[]>(executor);
+         for (final String dataFile : manifest.getFiles()){
+            completionService.submit(new Callable<long[]>(){
+               @Override
+               public long[] call() throws Exception{
+                  return reader.readDataFile(manifest, dataFile, pathPrefix, pickSince, trackKeys, safeListener);
+               }
+            });
+         }
+         for (int i = 1; i <= manifest.getFiles().size(); i++){
+            try {
+               long[] counts = completionService.take().get();
+               keyCount += counts[0];
+               pickedCount += counts[1];
+               logger.debug("{}: {}/{} inventory files read", riverName, i, manifest.getFiles().size());
+            } catch (ExecutionException ee){
+               if (ee.getCause() instanceof Exception){
+                  throw (Exception)ee.getCause();
+               }
+               throw ee;
+            }
+         }
+      } finally {
+         executor.shutdownNow();
+      }
 
+      logger.info("{}: complete inventory scan: {} files ({} new)", riverName, keyCount, pickedCount);
+      return new S3ObjectSummaries(manifest.getCreationTimestamp(), null, false, trackS3Deletions, keyCount, pickedCount);
+   }
+
+   /**
+    * Select summaries of object into bucket and of given path prefix that have modification
+    * date younger than lastScanTime. Summaries are not accumulated but handed to listener
+    * page by page, so memory only depends on the listing page size.
+    * @param lastScanTime Last modification date filter
+    * @param listener The listener receiving picked summaries and listed keys
+    * @return Outcome of the scan (scan time, bookmark and counters)
+    * @throws Exception if listener fails handling a page
+    */
+   public S3ObjectSummaries getObjectSummaries(String riverName, Long lastScanTime, boolean initialScan, String initialScanBookmark,
+         boolean trackS3Deletions, S3ObjectSummaryListener listener) throws Exception {
       if (initialScan) {
         trackS3Deletions = false;
         logger.info("{}: resuming initial scan of {} from {}", riverName, pathPrefix, initialScanBookmark);
@@ -96,91 +265,343 @@ public class S3Connector{
          lastScanTime = 0L;
       }
       
+      S3ObjectSummaryListener safeListener = listener;
+      List<S3ListingPartition> partitions;
+      // Initial scan relies on a single ordered listing for bookmarking the last key picked.
+      if (initialScan){
+         // Resume server side from the last key picked by previous run rather than re-listing from the start.
+         String marker = (initialScanBookmark == null || initialScanBookmark.isEmpty()) ? null : decodeKey(initialScanBookmark);
+         partitions = Collections.singletonList(new S3ListingPartition(pathPrefix, null, marker, null));
+      } else if (listingConcurrency <= 1){
+         partitions = Collections.singletonList(new S3ListingPartition(pathPrefix, null, null, null));
+      } else {
+         partitions = buildListingPartitions();
+         // Partitions are listed concurrently but listener is fed one page at a time.
+         safeListener = new SynchronizedListener(listener);
+         logger.info("{}: listing {} partitions of {} with concurrency {}", riverName, partitions.size(), pathPrefix, listingConcurrency);
+      }
+
+      if (partitions.size() == 1){
+         listPartition(riverName, partitions.get(0), lastScanTime, initialScan, trackS3Deletions, safeListener);
+      } else {
+         listPartitionsConcurrently(riverName, partitions, lastScanTime, trackS3Deletions, safeListener);
+      }
+
+      // Aggregate partitions progress.
+      long keyCount = 0;
+      long pickedCount = 0;
+      boolean scanTruncated = false;
+      String lastKey = null;
+      for (S3ListingPartition partition : partitions){
+         keyCount += partition.getKeyCount();
+         pickedCount += partition.getPickedCount();
+         scanTruncated |= partition.isTruncated();
+         if (partition.getLastPickedKey() != null){
+            lastKey = partition.getLastPickedKey();
+         }
+      }
+
+      // Wrap results and latest scan time.
+      if (scanTruncated) {
+        logger.info("{}: scan truncated for speed: {} files ({} new)", riverName, keyCount, pickedCount);
+      } else {
+        logger.info("{}: complete scan: {} files ({} new)", riverName, keyCount, pickedCount);
+      }
+
+      return new S3ObjectSummaries(lastScanTimeToReturn, lastKey, scanTruncated, trackS3Deletions, keyCount, pickedCount);
+   }
+
+   /**
+    * Split the path prefix key space into partitions that can be listed concurrently. If split points
+    * have been given, partitions are the key ranges between them. Otherwise, we use the common
+    * prefixes found using '/' delimiter plus a partition for the direct children of path prefix.
+    */
+   protected List<S3ListingPartition> buildListingPartitions(){
+      List<S3ListingPartition> partitions = new ArrayList<S3ListingPartition>();
+      if (listingSplitPoints != null && !listingSplitPoints.isEmpty()){
+         String startAfter = null;
+         for (String splitPoint : listingSplitPoints){
+            partitions.add(new S3ListingPartition(pathPrefix, null, startAfter, splitPoint));
+            startAfter = splitPoint;
+         }
+         partitions.add(new S3ListingPartition(pathPrefix, null, startAfter, null));
+         return partitions;
+      }
+
+      // Objects directly under path prefix.
+      partitions.add(new S3ListingPartition(pathPrefix, DELIMITER, null, null));
       ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucketName)
-            .withPrefix(pathPrefix).withEncodingType("url");
+            .withPrefix(pathPrefix).withDelimiter(DELIMITER).withEncodingType("url");
+      ObjectListing listing = s3Client.listObjects(request);
+      while (true){
+         for (String commonPrefix : listing.getCommonPrefixes()){
+            partitions.add(new S3ListingPartition(decodeKey(commonPrefix), null, null, null));
+         }
+         if (!listing.isTruncated()){
+            break;
+         }
+         listing = s3Client.listNextBatchOfObjects(listing);
+      }
+      return partitions;
+   }
+
+   /** List partitions on a bounded pool, failing as soon as a partition fails. */
+   private void listPartitionsConcurrently(final String riverName, List<S3ListingPartition> partitions, final long lastScanTime,
+         final boolean trackS3Deletions, final S3ObjectSummaryListener listener) throws Exception{
+      ExecutorService executor = EsExecutors.newFixed(Math.min(listingConcurrency, partitions.size()), -1,
+            EsExecutors.daemonThreadFactory("s3_lister"));
+      try {
+         CompletionService<S3ListingPartition> completionService = new ExecutorCompletionService<S3ListingPartition>(executor);
+         for (final S3ListingPartition partition : partitions){
+            completionService.submit(new Callable<S3ListingPartition>(){
+               @Override
+               public S3ListingPartition call() throws Exception{
+                  listPartition(riverName, partition, lastScanTime, false, trackS3Deletions, listener);
+                  return partition;
+               }
+            });
+         }
+         for (int i = 1; i <= partitions.size(); i++){
+            try {
+               S3ListingPartition partition = completionService.take().get();
+               logger.info("{}: partition {} listed, {}/{} partitions done", riverName, partition, i, partitions.size());
+            } catch (ExecutionException ee){
+               if (ee.getCause() instanceof Exception){
+                  throw (Exception)ee.getCause();
+               }
+               throw ee;
+            }
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   /**
+    * List a partition page by page and hand picked summaries and keys to listener.
+    * Partition progress is updated after each page.
+    */
+   private void listPartition(String riverName, S3ListingPartition partition, long lastScanTime, boolean initialScan,
+         boolean trackS3Deletions, S3ObjectSummaryListener listener) throws Exception{
+      ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucketName)
+            .withPrefix(partition.getPrefix()).withDelimiter(partition.getDelimiter())
+            .withMarker(partition.getStartAfter()).withEncodingType("url");
       ObjectListing listing = s3Client.listObjects(request);
       //logger.debug("Listing: {}", listing);
-      int keyCount = 0;
-      boolean scanTruncated = false;
-      String lastKey = null;
+      long pickedCount = 0;
+      boolean endReached = false;
 
       while (!listing.getObjectSummaries().isEmpty() || listing.isTruncated()){
          List<S3ObjectSummary> summaries = listing.getObjectSummaries();
-         // if (logger.isDebugEnabled()) {
-            logger.debug("Found {} items in this listObjects page (truncated? {})", summaries.size(), listing.isTruncated());
-         // }
+         logger.debug("Found {} items in this listObjects page (truncated? {})", summaries.size(), listing.isTruncated());
+
+         // Only this page is kept in memory: picked summaries and keys are handed to listener.
+         List<S3ObjectSummary> picked = new ArrayList<S3ObjectSummary>();
+         List<String> keys = trackS3Deletions ? new ArrayList<String>(summaries.size()) : null;
+         int pageKeyCount = 0;
 
          for (S3ObjectSummary summary : summaries) {
-            if (logger.isDebugEnabled()){
-               // logger.debug("Getting {} last modified on {}", summary.getKey(), summary.getLastModified());
+            if (partition.getEndAt() != null && partition.isAfterEnd(getDecodedKey(summary))) {
+               endReached = true;
+               break;
             }
-
+            pageKeyCount += 1;
             if (trackS3Deletions) {
               keys.add(summary.getKey());
             }
 
-            if (summary.getLastModified().getTime() > lastScanTime && result.size() < MAX_NEW_RESULTS_TO_INDEX_ON_RUN) {
-                 // logger.debug("  Picked !");
-
-                if (!initialScan || initialScanBookmark.compareTo(summary.getKey()) < 0) {
-                   logger.debug("  Picked {}", summary.getKey());
-                   result.add(summary);
-                   lastKey = summary.getKey();
-                 }
-
-              } else if (!scanTruncated && result.size() == MAX_NEW_RESULTS_TO_INDEX_ON_RUN) {
-                if (initialScan) {
+            if (!partition.isTruncated() && summary.getLastModified().getTime() > lastScanTime) {
+               // Initial scan is done by chunks, bookmarking the last key picked so that next run resumes from here.
+               if (initialScan && pickedCount == MAX_NEW_RESULTS_TO_INDEX_ON_RUN) {
                   logger.info("{}: only indexing up to {} new objects on this indexing run", riverName, MAX_NEW_RESULTS_TO_INDEX_ON_RUN);
-                // initialScan = true;
-                  scanTruncated = true;
-                }
-                
-                if (!trackS3Deletions) {
-                  // No need to keep iterating through all keys if we aren't doing deleteOnS3 
-                  break;
-                }
-              }
+                  partition.setTruncated(true);
+                  if (!trackS3Deletions) {
+                     // No need to keep iterating through all keys if we aren't doing deleteOnS3
+                     break;
+                  }
+               } else {
+                  logger.debug("  Picked {}", summary.getKey());
+                  picked.add(summary);
+                  pickedCount += 1;
+                  partition.setLastPickedKey(summary.getKey());
+               }
+            }
+         }
 
-            keyCount += 1;
+         if (!picked.isEmpty()) {
+            listener.onPickedSummaries(picked);
+         }
+         if (trackS3Deletions) {
+            listener.onListedKeys(keys);
+         }
+         partition.pageListed(pageKeyCount, picked.size());
+         if (logger.isDebugEnabled()){
+            logger.debug("{}: partition {} progress: {} pages, {} files ({} new)", riverName, partition,
+                  partition.getPageCount(), partition.getKeyCount(), partition.getPickedCount());
          }
 
-         if (initialScan && scanTruncated && !trackS3Deletions) {
+         if (endReached || (partition.isTruncated() && !trackS3Deletions)) {
            break;
          }
- 
-         listing = s3Client.listNextBatchOfObjects(listing);
-      }
+         if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException("Listing of partition " + partition + " interrupted");
+         }
 
-      // Wrap results and latest scan time.
-      if (scanTruncated) {
-        logger.info("{}: scan truncated for speed: {} files ({} new)", riverName, keyCount, result.size());
-      } else {
-        logger.info("{}: complete scan: {} files ({} new)", riverName, keyCount, result.size());
+         listing = s3Client.listNextBatchOfObjects(listing);
       }
-
-      return new S3ObjectSummaries(lastScanTimeToReturn, lastKey, scanTruncated, trackS3Deletions, result, keys);
-   }
-   
-   public Map<String,Object> getS3UserMetadata(String key){ 
-	   return Collections.<String, Object>unmodifiableMap(s3Client.getObjectMetadata(bucketName, key).getUserMetadata());
+      partition.setFinished(true);
    }
 
    public String getDecodedKey(S3ObjectSummary summary) {
       //return summary.getKey();  // If you deactivate using withEncodingType above
+      return decodeKey(summary.getKey());
+   }
+
+   /** Decode a key (or prefix) that has been url encoded by S3 listing. */
+   public String decodeKey(String key) {
       try {
-        return java.net.URLDecoder.decode(summary.getKey(), "UTF-8");
+        return java.net.URLDecoder.decode(key, "UTF-8");
       } catch (java.io.UnsupportedEncodingException e) {
         e.printStackTrace();
         return null;
       }
    }
 
+   /**
+    * Open Amazon S3 file content as a stream. Content is downloaded while stream is read.
+    * @param summary The summary of the S3 Object to download
+    * @return This file content, caller is responsible for closing it.
+    */
+   public S3ObjectContent getObjectContent(S3ObjectSummary summary) {
+      String key = getDecodedKey(summary);
+
+      if (logger.isDebugEnabled()){
+         logger.debug("Opening file content stream from {}", key);
+      }
+
+      // Large objects are downloaded by ranges into a temporary file.
+      if (isRangedDownload(summary)){
+         try {
+            return rangedDownload.download(bucketName, key, summary.getSize(), summary.getETag());
+         } catch (IOException ioe){
+            throw new AmazonClientException("Ranged download of " + key + " failed", ioe);
+         }
+      }
+
+      S3Object object = s3Client.getObject(bucketName, key);
+      return new S3ObjectContent(object.getObjectMetadata(), object.getObjectContent());
+   }
+
+   /**
+    * Download Amazon S3 file content, so that it can then be consumed without holding a connection
+    * open. Small contents are held into pooled chunks, others are spooled to a temporary file. Large
+    * objects are downloaded by ranges.
+    * @param summary The summary of the S3 Object to download
+    * @return This file content, whose chunks or temporary file are released once content is closed
+    * @throws IOException if content cannot be downloaded
+    */
+   public S3ObjectContent getSpooledContent(S3ObjectSummary summary) throws IOException {
+      String key = getDecodedKey(summary);
+      if (isRangedDownload(summary)){
+         return rangedDownload.download(bucketName, key, summary.getSize(), summary.getETag());
+      }
+      if (summary.getSize() <= spoolThreshold){
+         return getBufferedContent(summary);
+      }
+
+      if (logger.isDebugEnabled()){
+         logger.debug("Spooling file content of {}", key);
+      }
+      S3Object object = s3Client.getObject(bucketName, key);
+      S3ObjectContent content = new S3ObjectContent(object.getObjectMetadata(), object.getObjectContent());
+      File file = File.createTempFile("s3-river-", ".download");
+      boolean success = false;
+      try {
+         OutputStream out = new FileOutputStream(file);
+         try {
+            InputStream in = content.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long length = 0;
+            int len;
+            while ((len = in.read(buffer)) > 0){
+               out.write(buffer, 0, len);
+               length += len;
+            }
+            if (length != content.getContentLength()){
+               throw new IOException("Content of " + key + " is truncated at " + length + " bytes");
+            }
+         } finally {
+            out.close();
+         }
+         S3ObjectContent spooled = S3ObjectContent.fromTemporaryFile(content.getMetadata(), file);
+         success = true;
+         return spooled;
+      } finally {
+         content.close();
+         if (!success){
+            file.delete();
+         }
+      }
+   }
+
+   private boolean isRangedDownload(S3ObjectSummary summary){
+      return rangedDownload != null && summary.getSize() >= rangedDownloadThreshold;
+   }
+
+   /**
+    * Retrieve the summary of an Amazon S3 file without listing it.
+    * @param key The key of the S3 Object, as listed (URL encoded)
+    * @return This file summary, or null if file does not exist anymore.
+    */
+   public S3ObjectSummary getObjectSummary(String key) {
+      ObjectMetadata metadata;
+      try {
+         metadata = s3Client.getObjectMetadata(bucketName, decodeKey(key));
+      } catch (AmazonS3Exception ase){
+         if (ase.getStatusCode() == 404){
+            return null;
+         }
+         throw ase;
+      }
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(bucketName);
+      summary.setKey(key);
+      summary.setETag(metadata.getETag());
+      summary.setSize(metadata.getContentLength());
+      summary.setLastModified(metadata.getLastModified());
+      return summary;
+   }
+
+   /**
+    * Open the first bytes of Amazon S3 file content as a stream, using a ranged request.
+    * @param summary The summary of the S3 Object to download
+    * @param length The number of leading bytes to download
+    * @return This file leading content, caller is responsible for closing it.
+    */
+   public S3ObjectContent getObjectContent(S3ObjectSummary summary, long length) {
+      GetObjectRequest request = new GetObjectRequest(bucketName, getDecodedKey(summary))
+            .withRange(0, Math.max(0, Math.min(length, summary.getSize()) - 1));
+      S3Object object = s3Client.getObject(request);
+      return new S3ObjectContent(object.getObjectMetadata(), object.getObjectContent());
+   }
+
+   /**
+    * Retrieve Amazon S3 file user metadata without downloading its content.
+    * @param summary The summary of the S3 Object
+    * @return This file user metadata
+    */
+   public Map<String, Object> getUserMetadata(S3ObjectSummary summary) {
+      ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, getDecodedKey(summary));
+      return Collections.<String, Object>unmodifiableMap(metadata.getUserMetadata());
+   }
+
    /**
     * Download Amazon S3 file as byte array.
     * @param summary The summary of the S3 Object to download
-    * @return This file bytes or null if something goes wrong.
+    * @return This file bytes
+    * @throws IOException if content cannot be downloaded entirely
     */
-   public byte[] getContent(S3ObjectSummary summary) {
+   public byte[] getContent(S3ObjectSummary summary) throws IOException {
       String key = getDecodedKey(summary);
 
       // Retrieve object corresponding to key into bucket.
@@ -188,42 +609,64 @@ public class S3Connector{
          logger.debug("Downloading file content from {}", key);
       }
 
-      S3Object object = s3Client.getObject(bucketName, key);
-      
-      InputStream is = null;
-      ByteArrayOutputStream bos = null;
-
+      S3ObjectContent content = null;
       try{
-         // Get input stream on S3 Object.
-         is = object.getObjectContent();
-         bos = new ByteArrayOutputStream();
-
-         byte[] buffer = new byte[4096];
-         int len = is.read(buffer);
-         while (len > 0) {
-            bos.write(buffer, 0, len);
-            len = is.read(buffer);
-         }
-
-         // Flush and return result.
-         bos.flush();
-         return bos.toByteArray();
-      } catch (IOException e) {
-         e.printStackTrace();
-         return null;
-      } finally {
-         if (bos != null){
-            try{
-               bos.close();
-            } catch (IOException e) {
-            }
+         // Get content of S3 Object, large ones being downloaded by ranges first.
+         if (isRangedDownload(summary)){
+            content = rangedDownload.download(bucketName, key, summary.getSize(), summary.getETag());
+         } else {
+            S3Object object = s3Client.getObject(bucketName, key);
+            content = new S3ObjectContent(object.getObjectMetadata(), object.getObjectContent());
          }
+
+         // Bytes go straight from network into an array sized from Content-Length: a single copy.
+         long length = content.getContentLength();
+         if (length < 0 || length > Integer.MAX_VALUE){
+            throw new IOException("Content length of " + key + " is " + length + " bytes");
+         }
+         byte[] bytes = new byte[(int)length];
+         InputStream is = content.getInputStream();
+         int offset = 0;
+         int len;
+         while (offset < bytes.length && (len = is.read(bytes, offset, bytes.length - offset)) > 0){
+            offset += len;
+         }
+         if (offset < bytes.length){
+            throw new IOException("Content of " + key + " is truncated at " + offset + " bytes");
+         }
+         return bytes;
+      } finally {
          try{
-            is.close();
+            if (content != null){
+               content.close();
+            }
          } catch (IOException e) {
+            logger.debug("Error while closing content of {}", e, key);
          }
       }
    }
+
+   /**
+    * Download Amazon S3 file content into chunks of buffer pool, sized from its Content-Length.
+    * Returned content stream is a view on chunks, that are given back to pool when it is closed.
+    * Large objects downloaded by ranges are rather read from their temporary file, without copy.
+    * @param summary The summary of the S3 Object to download
+    * @return This file content, caller is responsible for closing it.
+    * @throws IOException if content cannot be read
+    */
+   public S3ObjectContent getBufferedContent(S3ObjectSummary summary) throws IOException {
+      if (isRangedDownload(summary)){
+         return rangedDownload.download(bucketName, getDecodedKey(summary), summary.getSize(), summary.getETag());
+      }
+      S3ObjectContent content = getObjectContent(summary);
+      S3ChunkedBuffer buffer;
+      try {
+         buffer = S3ChunkedBuffer.read(content.getInputStream(), content.getContentLength(), bufferPool);
+      } finally {
+         content.close();
+      }
+      return new S3ObjectContent(content.getMetadata(), buffer.newInputStream());
+   }
    
    /**
     * Get the download url of this S3 object. May return null if the
@@ -243,4 +686,24 @@ public class S3Connector{
       }
       return resourceUrl;
    }
+
+   /** Serialize calls of listener coming from concurrently listed partitions. */
+   private static class SynchronizedListener implements S3ObjectSummaryListener{
+
+      private final S3ObjectSummaryListener delegate;
+
+      public SynchronizedListener(S3ObjectSummaryListener delegate){
+         this.delegate = delegate;
+      }
+
+      @Override
+      public synchronized void onPickedSummaries(List<S3ObjectSummary> summaries) throws Exception{
+         delegate.onPickedSummaries(summaries);
+      }
+
+      @Override
+      public synchronized void onListedKeys(List<String> keys) throws Exception{
+         delegate.onListedKeys(keys);
+      }
+   }
 }
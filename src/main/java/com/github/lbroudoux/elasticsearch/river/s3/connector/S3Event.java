@@ -0,0 +1,183 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+/**
+ * A change of an Amazon S3 object, as notified by an S3 event notification
+ * (ObjectCreated:* or ObjectRemoved:* event record).
+ * @author laurent
+ */
+public class S3Event{
+
+   public enum Type{ CREATED, REMOVED }
+
+   private final Type type;
+   private final String bucket;
+   private final String key;
+   private final long size;
+   private final String etag;
+   private final Date eventTime;
+   private final String sequencer;
+
+   public S3Event(Type type, String bucket, String key, long size, String etag, Date eventTime, String sequencer){
+      this.type = type;
+      this.bucket = bucket;
+      this.key = key;
+      this.size = size;
+      this.etag = etag;
+      this.eventTime = eventTime;
+      this.sequencer = sequencer;
+   }
+
+   public Type getType(){
+      return type;
+   }
+
+   public String getBucket(){
+      return bucket;
+   }
+
+   /** @return The object key, URL encoded like keys of a listing */
+   public String getKey(){
+      return key;
+   }
+
+   public long getSize(){
+      return size;
+   }
+
+   public String getEtag(){
+      return etag;
+   }
+
+   public Date getEventTime(){
+      return eventTime;
+   }
+
+   public String getSequencer(){
+      return sequencer;
+   }
+
+   /**
+    * Tell if this event happened after other event on the same key. S3 sequencers are hexadecimal
+    * values of variable length, shorter ones being padded with zeros on the right before comparison.
+    */
+   public boolean isAfter(S3Event other){
+      if (sequencer == null || other.sequencer == null){
+         return other.sequencer == null;
+      }
+      int length = Math.max(sequencer.length(), other.sequencer.length());
+      return padRight(sequencer, length).compareTo(padRight(other.sequencer, length)) > 0;
+   }
+
+   private static String padRight(String value, int length){
+      StringBuilder result = new StringBuilder(length).append(value.toUpperCase());
+      while (result.length() < length){
+         result.append('0');
+      }
+      return result.toString();
+   }
+
+   /** Build the summary of created object from event, as if it were listed. */
+   public S3ObjectSummary toSummary(){
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(bucket);
+      summary.setKey(key);
+      summary.setSize(size);
+      summary.setETag(etag);
+      summary.setLastModified(eventTime);
+      return summary;
+   }
+
+   @Override
+   public String toString(){
+      return type + " " + bucket + "/" + key;
+   }
+
+   /**
+    * Extract events from the body of a notification message. Notifications published through
+    * an SNS topic are unwrapped first. Test events and other kinds of records are ignored.
+    * @param body The JSON body of message
+    * @return The object created and removed events of message, maybe empty
+    * @throws IOException if body is not a JSON notification
+    */
+   @SuppressWarnings("unchecked")
+   public static List<S3Event> fromNotification(String body) throws IOException{
+      Map<String, Object> notification;
+      try {
+         notification = XContentHelper.convertToMap(new BytesArray(body), false).v2();
+      } catch (Exception e){
+         throw new IOException("Notification is not a JSON document", e);
+      }
+      if ("Notification".equals(notification.get("Type")) && notification.get("Message") instanceof String){
+         return fromNotification((String)notification.get("Message"));
+      }
+      if (!(notification.get("Records") instanceof List)){
+         return Collections.emptyList();
+      }
+
+      List<S3Event> events = new ArrayList<S3Event>();
+      for (Object item : (List<Object>)notification.get("Records")){
+         if (!(item instanceof Map)){
+            continue;
+         }
+         Map<String, Object> record = (Map<String, Object>)item;
+         String eventName = XContentMapValues.nodeStringValue(record.get("eventName"), "");
+         Type type;
+         if (eventName.startsWith("ObjectCreated:")){
+            type = Type.CREATED;
+         } else if (eventName.startsWith("ObjectRemoved:")){
+            type = Type.REMOVED;
+         } else {
+            continue;
+         }
+         String bucket = (String)XContentMapValues.extractValue("s3.bucket.name", record);
+         String key = (String)XContentMapValues.extractValue("s3.object.key", record);
+         if (bucket == null || key == null){
+            continue;
+         }
+         long size = XContentMapValues.nodeLongValue(XContentMapValues.extractValue("s3.object.size", record), 0);
+         String etag = XContentMapValues.nodeStringValue(XContentMapValues.extractValue("s3.object.eTag", record), null);
+         String sequencer = XContentMapValues.nodeStringValue(XContentMapValues.extractValue("s3.object.sequencer", record), null);
+         Date eventTime = new Date();
+         if (record.get("eventTime") instanceof String){
+            try {
+               eventTime = ISODateTimeFormat.dateTimeParser().parseDateTime((String)record.get("eventTime")).toDate();
+            } catch (IllegalArgumentException iae){
+               // Keep reception time.
+            }
+         }
+         events.add(new S3Event(type, bucket, key, size, etag, eventTime, sequencer));
+      }
+      return events;
+   }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.IOException;
+import java.util.List;
+/**
+ * A message received from an event source: the notification body and the handle
+ * used by source for acknowledging it.
+ * @author laurent
+ */
+public class S3EventMessage{
+
+   private final String handle;
+   private final String body;
+
+   public S3EventMessage(String handle, String body){
+      this.handle = handle;
+      this.body = body;
+   }
+
+   public String getHandle(){
+      return handle;
+   }
+
+   public String getBody(){
+      return body;
+   }
+
+   /** @return The events notified by this message */
+   public List<S3Event> getEvents() throws IOException{
+      return S3Event.fromNotification(body);
+   }
+}
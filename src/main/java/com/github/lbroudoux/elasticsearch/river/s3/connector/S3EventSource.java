@@ -0,0 +1,45 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.Closeable;
+import java.util.List;
+/**
+ * A queue of Amazon S3 event notifications. Messages are received, handled and then
+ * acknowledged; a message that is not acknowledged may be received again later on.
+ * @author laurent
+ */
+public interface S3EventSource extends Closeable{
+
+   /**
+    * Receive available messages, waiting for some to come if queue is empty.
+    * @param maxMessages Maximum number of messages to return
+    * @param waitMillis Maximum time to wait for a message if none is available
+    * @return Received messages, empty if none came before wait time elapsed
+    * @throws Exception if queue cannot be read
+    */
+   public List<S3EventMessage> receive(int maxMessages, long waitMillis) throws Exception;
+
+   /**
+    * Remove a handled message from queue.
+    * @param message A message returned by receive
+    * @throws Exception if message cannot be removed
+    */
+   public void acknowledge(S3EventMessage message) throws Exception;
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+/**
+ * Event source reading S3 event notifications from the files of a local directory, one
+ * notification body per file, in file name order. Acknowledging a message deletes its file.
+ * As with SQS, a received message is hidden for a visibility timeout: if it is not acknowledged
+ * meanwhile, it is received again afterwards, and it does not hold back the following ones.
+ * This is a stand-in for a real queue, for tests or for notifications relayed by other means.
+ * @author laurent
+ */
+public class S3FileEventSource implements S3EventSource{
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final String MESSAGE_SUFFIX = ".json";
+
+   /** Interval between directory checks while waiting for messages. */
+   private static final long POLL_INTERVAL = 500;
+
+   /** Default time during which a received message is not received again, as for SQS. */
+   public static final long DEFAULT_VISIBILITY_TIMEOUT = 30 * 1000;
+
+   private final File directory;
+   private final long visibilityTimeout;
+
+   private final AtomicLong sequence = new AtomicLong();
+
+   /** Received messages not acknowledged yet, with the time they become visible again. */
+   private final Map<String, Long> hidden = new ConcurrentHashMap<String, Long>();
+
+   public S3FileEventSource(File directory) throws IOException{
+      this(directory, DEFAULT_VISIBILITY_TIMEOUT);
+   }
+
+   public S3FileEventSource(File directory, long visibilityTimeout) throws IOException{
+      this.directory = directory;
+      this.visibilityTimeout = visibilityTimeout;
+      if (!directory.isDirectory() && !directory.mkdirs()){
+         throw new IOException("Cannot create event directory " + directory);
+      }
+   }
+
+   /**
+    * Put a notification into queue. Message file is written aside first and then renamed,
+    * so that it is never received partially written.
+    * @param body The JSON body of notification
+    * @throws IOException if message file cannot be written
+    */
+   public void offer(String body) throws IOException{
+      String name = String.format("%020d-%06d", System.currentTimeMillis(), sequence.incrementAndGet() % 1000000);
+      File temp = new File(directory, "." + name + ".tmp");
+      OutputStream out = new FileOutputStream(temp);
+      try {
+         out.write(body.getBytes(UTF8));
+      } finally {
+         out.close();
+      }
+      if (!temp.renameTo(new File(directory, name + MESSAGE_SUFFIX))){
+         temp.delete();
+         throw new IOException("Cannot publish message into " + directory);
+      }
+   }
+
+   @Override
+   public List<S3EventMessage> receive(int maxMessages, long waitMillis) throws Exception{
+      long deadline = System.currentTimeMillis() + waitMillis;
+      while (true){
+         long now = System.currentTimeMillis();
+         for (Iterator<Long> visibleAt = hidden.values().iterator(); visibleAt.hasNext();){
+            if (visibleAt.next() <= now){
+               visibleAt.remove();
+            }
+         }
+         File[] files = directory.listFiles();
+         List<S3EventMessage> messages = new ArrayList<S3EventMessage>();
+         if (files != null){
+            Arrays.sort(files);
+            for (File file : files){
+               if (messages.size() >= maxMessages){
+                  break;
+               }
+               if (file.getName().endsWith(MESSAGE_SUFFIX) && !file.getName().startsWith(".")
+                     && !hidden.containsKey(file.getName())){
+                  messages.add(new S3EventMessage(file.getName(), new String(Files.readAllBytes(file.toPath()), UTF8)));
+                  hidden.put(file.getName(), now + visibilityTimeout);
+               }
+            }
+         }
+         long remaining = deadline - System.currentTimeMillis();
+         if (!messages.isEmpty() || remaining <= 0){
+            return messages;
+         }
+         Thread.sleep(Math.min(POLL_INTERVAL, remaining));
+      }
+   }
+
+   @Override
+   public void acknowledge(S3EventMessage message) throws Exception{
+      File file = new File(directory, message.getHandle());
+      if (file.exists() && !file.delete()){
+         throw new IOException("Cannot delete message " + file);
+      }
+      hidden.remove(message.getHandle());
+   }
+
+   @Override
+   public void close(){
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+/**
+ * The manifest.json of an Amazon S3 Inventory report: format and schema of the data files,
+ * the keys of these files into destination bucket and the time the inventory was taken.
+ * @author laurent
+ */
+public class S3InventoryManifest{
+
+   public static final String COLUMN_BUCKET = "Bucket";
+   public static final String COLUMN_KEY = "Key";
+   public static final String COLUMN_SIZE = "Size";
+   public static final String COLUMN_LAST_MODIFIED = "LastModifiedDate";
+   public static final String COLUMN_ETAG = "ETag";
+   public static final String COLUMN_IS_LATEST = "IsLatest";
+   public static final String COLUMN_IS_DELETE_MARKER = "IsDeleteMarker";
+
+   private final String sourceBucket;
+   private final String destinationBucket;
+   private final String fileFormat;
+   private final List<String> columns;
+   private final long creationTimestamp;
+   private final List<String> files;
+
+   public S3InventoryManifest(String sourceBucket, String destinationBucket, String fileFormat, List<String> columns,
+         long creationTimestamp, List<String> files){
+      this.sourceBucket = sourceBucket;
+      this.destinationBucket = destinationBucket;
+      this.fileFormat = fileFormat;
+      this.columns = columns;
+      this.creationTimestamp = creationTimestamp;
+      this.files = files;
+   }
+
+   public String getSourceBucket(){
+      return sourceBucket;
+   }
+
+   /** @return Name of bucket holding data files (not its ARN) */
+   public String getDestinationBucket(){
+      return destinationBucket;
+   }
+
+   public String getFileFormat(){
+      return fileFormat;
+   }
+
+   public List<String> getColumns(){
+      return columns;
+   }
+
+   /** @return Time inventory was taken, objects modified later are not into it */
+   public long getCreationTimestamp(){
+      return creationTimestamp;
+   }
+
+   /** @return Keys of data files into destination bucket */
+   public List<String> getFiles(){
+      return files;
+   }
+
+   /** @return Index of column into data file rows, -1 if column is not part of inventory */
+   public int columnIndex(String column){
+      return columns.indexOf(column);
+   }
+
+   /**
+    * Read a manifest document.
+    * @param json The content of manifest.json
+    * @return The manifest
+    * @throws IOException if document is not a valid inventory manifest
+    */
+   @SuppressWarnings("unchecked")
+   public static S3InventoryManifest fromJson(byte[] json) throws IOException{
+      Map<String, Object> manifest;
+      try {
+         manifest = XContentHelper.convertToMap(new BytesArray(json), false).v2();
+      } catch (Exception e){
+         throw new IOException("Inventory manifest is not a JSON document", e);
+      }
+      String sourceBucket = XContentMapValues.nodeStringValue(manifest.get("sourceBucket"), null);
+      String destinationBucket = XContentMapValues.nodeStringValue(manifest.get("destinationBucket"), null);
+      if (destinationBucket != null && destinationBucket.startsWith("arn:")){
+         destinationBucket = destinationBucket.substring(destinationBucket.lastIndexOf(':') + 1);
+      }
+      String fileFormat = XContentMapValues.nodeStringValue(manifest.get("fileFormat"), "CSV");
+      String fileSchema = XContentMapValues.nodeStringValue(manifest.get("fileSchema"), null);
+      if (fileSchema == null || !(manifest.get("files") instanceof List)){
+         throw new IOException("Inventory manifest has no fileSchema or files");
+      }
+      List<String> columns = new ArrayList<String>();
+      for (String column : fileSchema.split(",")){
+         columns.add(column.trim());
+      }
+      if (!columns.contains(COLUMN_KEY)){
+         throw new IOException("Inventory has no " + COLUMN_KEY + " column");
+      }
+      long creationTimestamp = XContentMapValues.nodeLongValue(manifest.get("creationTimestamp"), System.currentTimeMillis());
+      List<String> files = new ArrayList<String>();
+      for (Object file : (List<Object>)manifest.get("files")){
+         if (file instanceof Map && ((Map<String, Object>)file).get("key") != null){
+            files.add(((Map<String, Object>)file).get("key").toString());
+         }
+      }
+      return new S3InventoryManifest(sourceBucket, destinationBucket, fileFormat,
+            Collections.unmodifiableList(columns), creationTimestamp, Collections.unmodifiableList(files));
+   }
+}
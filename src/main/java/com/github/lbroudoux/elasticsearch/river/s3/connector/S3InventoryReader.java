@@ -0,0 +1,298 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+/**
+ * Reader of Amazon S3 Inventory reports in CSV format. Location is either an <code>s3://bucket/key</code>
+ * url or a local path, and designates a manifest.json or the folder of an inventory configuration (whose
+ * latest dated report is then used). Data files are streamed and decompressed on the fly, one page of
+ * rows being held in memory at a time.
+ * @author laurent
+ */
+public class S3InventoryReader{
+
+   public static final String S3_SCHEME = "s3://";
+
+   private static final String MANIFEST = "manifest.json";
+
+   /** Name of folders holding the reports of an inventory configuration. */
+   private static final Pattern REPORT_FOLDER = Pattern.compile("\\d{4}-\\d{2}-\\d{2}T\\d{2}-\\d{2}Z");
+
+   private static final int PAGE_SIZE = 1000;
+
+   private final AmazonS3Client s3Client;
+   private final String location;
+   /** Location of manifest that has been read. */
+   private String manifestLocation;
+
+   public S3InventoryReader(AmazonS3Client s3Client, String location){
+      this.s3Client = s3Client;
+      this.location = location;
+   }
+
+   /**
+    * Read the manifest of inventory report.
+    * @return The manifest, or null if inventory configuration has no report yet
+    * @throws IOException if manifest cannot be read or if inventory is not in CSV format
+    */
+   public S3InventoryManifest readManifest() throws IOException{
+      manifestLocation = location.endsWith(MANIFEST) ? location : findLatestManifest();
+      if (manifestLocation == null){
+         return null;
+      }
+      InputStream in = open(manifestLocation);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+         byte[] buffer = new byte[4096];
+         int len;
+         while ((len = in.read(buffer)) > 0){
+            bytes.write(buffer, 0, len);
+         }
+      } finally {
+         in.close();
+      }
+      S3InventoryManifest manifest = S3InventoryManifest.fromJson(bytes.toByteArray());
+      if (!"CSV".equalsIgnoreCase(manifest.getFileFormat())){
+         throw new IOException("Inventory format " + manifest.getFileFormat() + " is not supported, "
+               + "inventory configuration should use CSV format");
+      }
+      return manifest;
+   }
+
+   /** @return The location of manifest read by {@link #readManifest()} */
+   public String getManifestLocation(){
+      return manifestLocation;
+   }
+
+   /**
+    * Stream a data file of inventory and hand its rows to listener page by page, as a listing would.
+    * Rows of other versions than latest one, and delete markers, are ignored.
+    * @param manifest The manifest of inventory report
+    * @param dataFile A key of data file, as found into manifest
+    * @param pathPrefix Prefix of keys to consider (decoded)
+    * @param lastScanTime Objects modified after that time are picked
+    * @param trackS3Deletions Whether keys should be handed to listener
+    * @param listener The listener receiving picked summaries and keys
+    * @return The number of keys found and the number of summaries picked, as a 2 cells array
+    * @throws Exception if file cannot be read or listener fails handling a page
+    */
+   public long[] readDataFile(S3InventoryManifest manifest, String dataFile, String pathPrefix, long lastScanTime,
+         boolean trackS3Deletions, S3ObjectSummaryListener listener) throws Exception{
+      int keyColumn = manifest.columnIndex(S3InventoryManifest.COLUMN_KEY);
+      int sizeColumn = manifest.columnIndex(S3InventoryManifest.COLUMN_SIZE);
+      int lastModifiedColumn = manifest.columnIndex(S3InventoryManifest.COLUMN_LAST_MODIFIED);
+      int etagColumn = manifest.columnIndex(S3InventoryManifest.COLUMN_ETAG);
+      int isLatestColumn = manifest.columnIndex(S3InventoryManifest.COLUMN_IS_LATEST);
+      int isDeleteMarkerColumn = manifest.columnIndex(S3InventoryManifest.COLUMN_IS_DELETE_MARKER);
+      DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser();
+
+      InputStream in = open(resolveDataFile(manifest, dataFile));
+      if (dataFile.endsWith(".gz")){
+         in = new GZIPInputStream(in, 64 * 1024);
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 64 * 1024);
+      long keyCount = 0;
+      long pickedCount = 0;
+      try {
+         List<S3ObjectSummary> picked = new ArrayList<S3ObjectSummary>();
+         List<String> keys = trackS3Deletions ? new ArrayList<String>(PAGE_SIZE) : null;
+         int pageKeyCount = 0;
+         String line;
+         while ((line = reader.readLine()) != null){
+            List<String> row = parseCsvLine(line);
+            String key = column(row, keyColumn);
+            if (key == null || "false".equalsIgnoreCase(column(row, isLatestColumn))
+                  || "true".equalsIgnoreCase(column(row, isDeleteMarkerColumn))){
+               continue;
+            }
+            if (pathPrefix != null && !decodeKey(key).startsWith(pathPrefix)){
+               continue;
+            }
+            pageKeyCount++;
+            if (trackS3Deletions){
+               keys.add(key);
+            }
+            String lastModified = column(row, lastModifiedColumn);
+            Date lastModifiedDate = lastModified == null || lastModified.isEmpty()
+                  ? new Date(manifest.getCreationTimestamp()) : dateParser.parseDateTime(lastModified).toDate();
+            if (lastModifiedDate.getTime() > lastScanTime){
+               S3ObjectSummary summary = new S3ObjectSummary();
+               summary.setBucketName(manifest.getSourceBucket());
+               summary.setKey(key);
+               String size = column(row, sizeColumn);
+               summary.setSize(size == null || size.isEmpty() ? 0 : Long.parseLong(size));
+               summary.setETag(column(row, etagColumn));
+               summary.setLastModified(lastModifiedDate);
+               picked.add(summary);
+            }
+
+            if (pageKeyCount == PAGE_SIZE){
+               pickedCount += picked.size();
+               keyCount += pageKeyCount;
+               handPage(picked, keys, listener);
+               picked = new ArrayList<S3ObjectSummary>();
+               keys = trackS3Deletions ? new ArrayList<String>(PAGE_SIZE) : null;
+               pageKeyCount = 0;
+               if (Thread.currentThread().isInterrupted()){
+                  throw new InterruptedException("Reading of inventory file " + dataFile + " interrupted");
+               }
+            }
+         }
+         pickedCount += picked.size();
+         keyCount += pageKeyCount;
+         handPage(picked, keys, listener);
+      } finally {
+         reader.close();
+      }
+      return new long[]{keyCount, pickedCount};
+   }
+
+   private void handPage(List<S3ObjectSummary> picked, List<String> keys, S3ObjectSummaryListener listener) throws Exception{
+      if (!picked.isEmpty()){
+         listener.onPickedSummaries(picked);
+      }
+      if (keys != null && !keys.isEmpty()){
+         listener.onListedKeys(keys);
+      }
+   }
+
+   private static String column(List<String> row, int index){
+      return index >= 0 && index < row.size() ? row.get(index) : null;
+   }
+
+   /** Split a CSV line into its fields, fields being optionally enclosed by double quotes. */
+   static List<String> parseCsvLine(String line){
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++){
+         char c = line.charAt(i);
+         if (quoted){
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+               field.append('"');
+               i++;
+            } else if (c == '"'){
+               quoted = false;
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"'){
+            quoted = true;
+         } else if (c == ','){
+            fields.add(field.toString());
+            field.setLength(0);
+         } else {
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+      return fields;
+   }
+
+   private static String decodeKey(String key) throws UnsupportedEncodingException{
+      return URLDecoder.decode(key, "UTF-8");
+   }
+
+   /**
+    * Data files keys are relative to destination bucket. For a local copy of inventory, they are
+    * looked for into the data folder of configuration, that is aside the dated report folders.
+    */
+   private String resolveDataFile(S3InventoryManifest manifest, String dataFile){
+      if (manifestLocation.startsWith(S3_SCHEME)){
+         String bucket = manifest.getDestinationBucket() != null ? manifest.getDestinationBucket()
+               : manifestLocation.substring(S3_SCHEME.length(), manifestLocation.indexOf('/', S3_SCHEME.length()));
+         return S3_SCHEME + bucket + "/" + dataFile;
+      }
+      File configurationFolder = new File(manifestLocation).getAbsoluteFile().getParentFile().getParentFile();
+      return new File(new File(configurationFolder, "data"), dataFile.substring(dataFile.lastIndexOf('/') + 1)).getPath();
+   }
+
+   /** Find manifest of the most recent report of configuration folder. */
+   private String findLatestManifest() throws IOException{
+      String latest = null;
+      if (location.startsWith(S3_SCHEME)){
+         int bucketEnd = location.indexOf('/', S3_SCHEME.length());
+         String bucket = bucketEnd < 0 ? location.substring(S3_SCHEME.length()) : location.substring(S3_SCHEME.length(), bucketEnd);
+         String prefix = bucketEnd < 0 ? "" : location.substring(bucketEnd + 1);
+         if (!prefix.isEmpty() && !prefix.endsWith("/")){
+            prefix += "/";
+         }
+         ObjectListing listing = s3Client.listObjects(new ListObjectsRequest()
+               .withBucketName(bucket).withPrefix(prefix).withDelimiter("/"));
+         while (true){
+            for (String commonPrefix : listing.getCommonPrefixes()){
+               String folder = commonPrefix.substring(prefix.length(), commonPrefix.length() - 1);
+               if (REPORT_FOLDER.matcher(folder).matches() && (latest == null || folder.compareTo(latest) > 0)){
+                  latest = folder;
+               }
+            }
+            if (!listing.isTruncated()){
+               break;
+            }
+            listing = s3Client.listNextBatchOfObjects(listing);
+         }
+         return latest == null ? null : S3_SCHEME + bucket + "/" + prefix + latest + "/" + MANIFEST;
+      }
+
+      File[] folders = new File(location).listFiles();
+      if (folders == null){
+         throw new IOException("Inventory location " + location + " is not a folder");
+      }
+      for (File folder : folders){
+         if (REPORT_FOLDER.matcher(folder.getName()).matches() && new File(folder, MANIFEST).isFile()
+               && (latest == null || folder.getName().compareTo(latest) > 0)){
+            latest = folder.getName();
+         }
+      }
+      return latest == null ? null : new File(new File(location, latest), MANIFEST).getPath();
+   }
+
+   /** Open a file of inventory, from S3 or from local file system. */
+   private InputStream open(String path) throws IOException{
+      if (path.startsWith(S3_SCHEME)){
+         int bucketEnd = path.indexOf('/', S3_SCHEME.length());
+         S3Object object = s3Client.getObject(path.substring(S3_SCHEME.length(), bucketEnd), path.substring(bucketEnd + 1));
+         return new S3ObjectContent(object.getObjectMetadata(), object.getObjectContent()).getInputStream();
+      }
+      return new FileInputStream(path);
+   }
+}
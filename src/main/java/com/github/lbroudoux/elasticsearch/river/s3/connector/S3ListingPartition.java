@@ -0,0 +1,131 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.util.concurrent.atomic.AtomicLong;
+/**
+ * A slice of the bucket key space that can be listed independently of others.
+ * A partition is made of a key prefix, an optional delimiter (for only listing
+ * direct children of prefix) and an optional key range. It also holds the
+ * listing progress of this slice.
+ * @author laurent
+ */
+public class S3ListingPartition{
+
+   private final String prefix;
+   private final String delimiter;
+   private final String startAfter;
+   private final String endAt;
+
+   private final AtomicLong pageCount = new AtomicLong();
+   private final AtomicLong keyCount = new AtomicLong();
+   private final AtomicLong pickedCount = new AtomicLong();
+   private volatile boolean finished = false;
+   private volatile boolean truncated = false;
+   private volatile String lastPickedKey;
+
+   /**
+    * @param prefix Key prefix of listed objects
+    * @param delimiter Delimiter for only listing direct children of prefix (may be null)
+    * @param startAfter Listing starts right after this (decoded) key, exclusive (may be null)
+    * @param endAt Listing stops at this (decoded) key, inclusive (may be null)
+    */
+   public S3ListingPartition(String prefix, String delimiter, String startAfter, String endAt){
+      this.prefix = prefix;
+      this.delimiter = delimiter;
+      this.startAfter = startAfter;
+      this.endAt = endAt;
+   }
+
+   public String getPrefix(){
+      return prefix;
+   }
+
+   public String getDelimiter(){
+      return delimiter;
+   }
+
+   public String getStartAfter(){
+      return startAfter;
+   }
+
+   public String getEndAt(){
+      return endAt;
+   }
+
+   /** @return true if given decoded key is after the end of this partition. */
+   public boolean isAfterEnd(String decodedKey){
+      return endAt != null && decodedKey.compareTo(endAt) > 0;
+   }
+
+   public void pageListed(int keys, int picked){
+      pageCount.incrementAndGet();
+      keyCount.addAndGet(keys);
+      pickedCount.addAndGet(picked);
+   }
+
+   public long getPageCount(){
+      return pageCount.get();
+   }
+
+   public long getKeyCount(){
+      return keyCount.get();
+   }
+
+   public long getPickedCount(){
+      return pickedCount.get();
+   }
+
+   public boolean isFinished(){
+      return finished;
+   }
+
+   public void setFinished(boolean finished){
+      this.finished = finished;
+   }
+
+   public boolean isTruncated(){
+      return truncated;
+   }
+
+   public void setTruncated(boolean truncated){
+      this.truncated = truncated;
+   }
+
+   public String getLastPickedKey(){
+      return lastPickedKey;
+   }
+
+   public void setLastPickedKey(String lastPickedKey){
+      this.lastPickedKey = lastPickedKey;
+   }
+
+   @Override
+   public String toString(){
+      StringBuilder builder = new StringBuilder("[").append(prefix == null ? "" : prefix);
+      if (delimiter != null){
+         builder.append(" (direct children)");
+      }
+      if (startAfter != null || endAt != null){
+         builder.append(" (").append(startAfter == null ? "" : startAfter)
+               .append(", ").append(endAt == null ? "" : endAt).append("]");
+      }
+      return builder.append("]").toString();
+   }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+/**
+ * The content of an Amazon S3 object being downloaded, exposed as a stream so that it can be
+ * consumed (by a parser for example) without ever being fully held into memory. If stream is
+ * closed before the whole content has been read, the underlying connection is aborted rather
+ * than drained.
+ * @author laurent
+ */
+public class S3ObjectContent implements Closeable{
+
+   private final ObjectMetadata metadata;
+   private final InputStream inputStream;
+
+   public S3ObjectContent(ObjectMetadata metadata, InputStream inputStream){
+      this.metadata = metadata;
+      this.inputStream = new AbortingInputStream(inputStream, metadata.getContentLength());
+   }
+
+   /**
+    * Build the content of an object that has been downloaded into a temporary file.
+    * @param metadata The metadata of S3 object
+    * @param file The temporary file, removed once content is closed
+    * @return The content reading the file
+    * @throws IOException if file cannot be opened
+    */
+   public static S3ObjectContent fromTemporaryFile(ObjectMetadata metadata, final File file) throws IOException{
+      InputStream content = new FileInputStream(file){
+         @Override
+         public void close() throws IOException{
+            try {
+               super.close();
+            } finally {
+               file.delete();
+            }
+         }
+      };
+      return new S3ObjectContent(metadata, content);
+   }
+
+   /** @return The metadata of S3 object */
+   public ObjectMetadata getMetadata(){
+      return metadata;
+   }
+
+   /** @return The user metadata of S3 object, retrieved along with content */
+   public Map<String, Object> getUserMetadata(){
+      return Collections.<String, Object>unmodifiableMap(metadata.getUserMetadata());
+   }
+
+   /** @return The length of content in bytes */
+   public long getContentLength(){
+      return metadata.getContentLength();
+   }
+
+   /** @return The stream on content. It should be read once. */
+   public InputStream getInputStream(){
+      return inputStream;
+   }
+
+   @Override
+   public void close() throws IOException{
+      inputStream.close();
+   }
+
+   /** Count bytes read for knowing if connection should be aborted on close. */
+   private static class AbortingInputStream extends FilterInputStream{
+
+      private final long length;
+      private long read = 0;
+      private boolean closed = false;
+
+      public AbortingInputStream(InputStream in, long length){
+         super(in);
+         this.length = length;
+      }
+
+      @Override
+      public int read() throws IOException{
+         int b = super.read();
+         if (b != -1){
+            read++;
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException{
+         int count = super.read(b, off, len);
+         if (count > 0){
+            read += count;
+         }
+         return count;
+      }
+
+      @Override
+      public long skip(long n) throws IOException{
+         long skipped = super.skip(n);
+         read += skipped;
+         return skipped;
+      }
+
+      @Override
+      public boolean markSupported(){
+         return false;
+      }
+
+      @Override
+      public void close() throws IOException{
+         if (closed){
+            return;
+         }
+         closed = true;
+         if (read < length && in instanceof S3ObjectInputStream){
+            ((S3ObjectInputStream)in).abort();
+         }
+         super.close();
+      }
+   }
+}
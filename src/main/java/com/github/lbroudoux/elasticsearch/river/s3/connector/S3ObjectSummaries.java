@@ -19,13 +19,10 @@
 package com.github.lbroudoux.elasticsearch.river.s3.connector;
 
 import java.io.Serializable;
-import java.util.List;
-
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 /**
- * This is a simple wrapper for carrying picked up summaries of S3 bucket objects
- * that mastches the last modification date criteria along with the keys of any objects
- * regardless their modification date.
+ * This is a simple wrapper for carrying the outcome of a S3 bucket scan. Picked up
+ * summaries and listed keys are not retained here: they are streamed page by page
+ * to a {@link S3ObjectSummaryListener} while the bucket is listed.
  * @author laurent
  */
 public class S3ObjectSummaries implements Serializable{
@@ -35,18 +32,18 @@ public class S3ObjectSummaries implements Serializable{
 
    private Long lastScanTime;
    
-   private List<String> keys;
-   private List<S3ObjectSummary> pickedSummaries;
+   private long keyCount;
+   private long pickedCount;
 
    private String lastKey;
    private boolean scanTruncated;
    private boolean trackS3Deletions;
 
    
-   public S3ObjectSummaries(Long lastScanTime, String lastKey, boolean scanTruncated, boolean trackS3Deletions, List<S3ObjectSummary> summaries, List<String> keys){
+   public S3ObjectSummaries(Long lastScanTime, String lastKey, boolean scanTruncated, boolean trackS3Deletions, long keyCount, long pickedCount){
       this.lastScanTime = lastScanTime;
-      this.pickedSummaries = summaries;
-      this.keys = keys;
+      this.keyCount = keyCount;
+      this.pickedCount = pickedCount;
       this.lastKey = lastKey;
       this.scanTruncated = scanTruncated;
       this.trackS3Deletions = trackS3Deletions;
@@ -56,12 +53,12 @@ public class S3ObjectSummaries implements Serializable{
       return lastScanTime;
    }
 
-   public List<String> getKeys(){
-      return keys;
+   public long getKeyCount(){
+      return keyCount;
    }
    
-   public List<S3ObjectSummary> getPickedSummaries(){
-      return pickedSummaries;
+   public long getPickedCount(){
+      return pickedCount;
    }
 
    public String getLastKey() {
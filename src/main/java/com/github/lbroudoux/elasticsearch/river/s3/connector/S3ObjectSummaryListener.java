@@ -0,0 +1,45 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.util.List;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+/**
+ * Callback receiving the result of a bucket listing page by page, so that
+ * callers never have to hold the whole bucket content in memory.
+ * @author laurent
+ */
+public interface S3ObjectSummaryListener{
+
+   /**
+    * Called for each listing page with the summaries that have been picked
+    * (modified since last scan and not yet indexed by a previous initial scan run).
+    * @param summaries Picked summaries of this page, never empty
+    * @throws Exception if summaries cannot be handled. This aborts the listing.
+    */
+   public void onPickedSummaries(List<S3ObjectSummary> summaries) throws Exception;
+
+   /**
+    * Called for each listing page with all the keys found, only when S3 deletions are tracked.
+    * @param keys All keys of this page
+    * @throws Exception if keys cannot be handled. This aborts the listing.
+    */
+   public void onListedKeys(List<String> keys) throws Exception;
+}
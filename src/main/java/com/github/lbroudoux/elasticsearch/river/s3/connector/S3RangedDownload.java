@@ -0,0 +1,169 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+/**
+ * Download of a large Amazon S3 object as concurrent byte range GETs. Parts are written at their
+ * offset into a temporary file preallocated to object size, so that content is reassembled in order
+ * whatever the order parts complete. Every part is conditioned on the ETag of object so that parts
+ * of different versions are never mixed.
+ * @author laurent
+ */
+public class S3RangedDownload{
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final AmazonS3Client s3Client;
+   private final ExecutorService executor;
+   private final long partSize;
+   private final int concurrency;
+
+   /**
+    * @param s3Client Client for GETs
+    * @param executor Pool running part downloads
+    * @param partSize Size of byte ranges
+    * @param concurrency Number of parts of an object downloaded at the same time
+    */
+   public S3RangedDownload(AmazonS3Client s3Client, ExecutorService executor, long partSize, int concurrency){
+      this.s3Client = s3Client;
+      this.executor = executor;
+      this.partSize = partSize;
+      this.concurrency = concurrency;
+   }
+
+   /**
+    * Download an object.
+    * @param bucketName Bucket of object
+    * @param key Decoded key of object
+    * @param size Size of object in bytes
+    * @param etag ETag of object, may be null
+    * @return Object content, backed by a temporary file that is removed once content is closed
+    * @throws IOException if a part cannot be downloaded or object changed meanwhile
+    */
+   public S3ObjectContent download(final String bucketName, final String key, final long size, final String etag)
+         throws IOException{
+      final File file = File.createTempFile("s3-river-", ".download");
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      boolean success = false;
+      try {
+         raf.setLength(size);
+         final FileChannel channel = raf.getChannel();
+         final int parts = (int)((size + partSize - 1) / partSize);
+         final AtomicInteger nextPart = new AtomicInteger();
+         final AtomicReference<ObjectMetadata> metadata = new AtomicReference<ObjectMetadata>();
+
+         // Each worker downloads parts one after the other until there's no part left.
+         List<Future<Void>> workers = new ArrayList<Future<Void>>();
+         for (int i = 0; i < Math.min(concurrency, parts); i++){
+            workers.add(executor.submit(new Callable<Void>(){
+               @Override
+               public Void call() throws Exception{
+                  int part;
+                  while ((part = nextPart.getAndIncrement()) < parts){
+                     long start = part * partSize;
+                     long end = Math.min(start + partSize, size) - 1;
+                     ObjectMetadata partMetadata = downloadPart(bucketName, key, etag, start, end, channel);
+                     metadata.compareAndSet(null, partMetadata);
+                  }
+                  return null;
+               }
+            }));
+         }
+         try {
+            for (Future<Void> worker : workers){
+               worker.get();
+            }
+         } catch (ExecutionException ee){
+            if (ee.getCause() instanceof IOException){
+               throw (IOException)ee.getCause();
+            }
+            throw new IOException("Ranged download of " + key + " failed", ee.getCause());
+         } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new IOException("Ranged download of " + key + " interrupted", ie);
+         } finally {
+            for (Future<Void> worker : workers){
+               worker.cancel(true);
+            }
+         }
+
+         ObjectMetadata objectMetadata = metadata.get() != null ? metadata.get() : new ObjectMetadata();
+         objectMetadata.setContentLength(size);
+         S3ObjectContent content = S3ObjectContent.fromTemporaryFile(objectMetadata, file);
+         success = true;
+         return content;
+      } finally {
+         raf.close();
+         if (!success){
+            file.delete();
+         }
+      }
+   }
+
+   /** Download a byte range and write it at its offset. */
+   private ObjectMetadata downloadPart(String bucketName, String key, String etag, long start, long end, FileChannel channel)
+         throws IOException{
+      GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, end);
+      if (etag != null){
+         request.withMatchingETagConstraint(etag);
+      }
+      S3Object object = s3Client.getObject(request);
+      if (object == null){
+         throw new IOException(key + " has changed while being downloaded");
+      }
+      S3ObjectContent content = new S3ObjectContent(object.getObjectMetadata(), object.getObjectContent());
+      try {
+         InputStream in = content.getInputStream();
+         byte[] buffer = new byte[BUFFER_SIZE];
+         long position = start;
+         int len;
+         while (position <= end && (len = in.read(buffer)) > 0){
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, len);
+            while (bytes.hasRemaining()){
+               position += channel.write(bytes, position);
+            }
+         }
+         if (position != end + 1){
+            throw new IOException("Range " + start + "-" + end + " of " + key + " is truncated at " + position);
+         }
+      } finally {
+         content.close();
+      }
+      return object.getObjectMetadata();
+   }
+}
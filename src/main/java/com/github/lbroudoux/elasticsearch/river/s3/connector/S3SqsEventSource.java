@@ -0,0 +1,75 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+/**
+ * Event source reading S3 event notifications from an Amazon SQS queue, the bucket
+ * notifying the queue directly or through an SNS topic. Receiving uses long polling.
+ * @author laurent
+ */
+public class S3SqsEventSource implements S3EventSource{
+
+   /** SQS limits for a single receive call. */
+   private static final int MAX_MESSAGES = 10;
+   private static final int MAX_WAIT_SECONDS = 20;
+
+   private final AmazonSQSClient sqsClient;
+   private final String queueUrl;
+
+   public S3SqsEventSource(String accessKey, String secretKey, String queueUrl){
+      AWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
+      this.sqsClient = new AmazonSQSClient(credentials);
+      this.queueUrl = queueUrl;
+      // Queue url embeds its region, use the matching endpoint.
+      if (queueUrl.startsWith("https://") || queueUrl.startsWith("http://")){
+         this.sqsClient.setEndpoint(queueUrl.substring(0, queueUrl.indexOf('/', queueUrl.indexOf("//") + 2)));
+      }
+   }
+
+   @Override
+   public List<S3EventMessage> receive(int maxMessages, long waitMillis) throws Exception{
+      ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+            .withMaxNumberOfMessages(Math.max(1, Math.min(maxMessages, MAX_MESSAGES)))
+            .withWaitTimeSeconds((int)Math.min(waitMillis / 1000, MAX_WAIT_SECONDS));
+      List<Message> received = sqsClient.receiveMessage(request).getMessages();
+      List<S3EventMessage> messages = new ArrayList<S3EventMessage>(received.size());
+      for (Message message : received){
+         messages.add(new S3EventMessage(message.getReceiptHandle(), message.getBody()));
+      }
+      return messages;
+   }
+
+   @Override
+   public void acknowledge(S3EventMessage message) throws Exception{
+      sqsClient.deleteMessage(queueUrl, message.getHandle());
+   }
+
+   @Override
+   public void close(){
+      sqsClient.shutdown();
+   }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.extractor.ParsingEmbeddedDocumentExtractor;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+/**
+ * An embedded document extractor keeping attachments apart from their container so that they
+ * can be parsed and indexed as documents of their own. Attachments (embedded documents having
+ * a name) are spooled to temporary files; other embedded documents (such as the text parts of
+ * an email body) are parsed into container text as usual.
+ * @author laurent
+ */
+public class S3AttachmentExtractor implements EmbeddedDocumentExtractor{
+
+   private final ParsingEmbeddedDocumentExtractor inlineExtractor;
+   private final List<Attachment> attachments = new ArrayList<Attachment>();
+   private boolean done = false;
+
+   /**
+    * Create an extractor and register it into parse context.
+    * @param context The parse context of container document
+    */
+   public S3AttachmentExtractor(ParseContext context){
+      this.inlineExtractor = new ParsingEmbeddedDocumentExtractor(context);
+      context.set(EmbeddedDocumentExtractor.class, this);
+   }
+
+   @Override
+   public boolean shouldParseEmbedded(Metadata metadata){
+      return true;
+   }
+
+   @Override
+   public void parseEmbedded(InputStream stream, ContentHandler handler, Metadata metadata, boolean outputHtml)
+         throws SAXException, IOException{
+      if (metadata.get(Metadata.RESOURCE_NAME_KEY) == null){
+         inlineExtractor.parseEmbedded(stream, handler, metadata, outputHtml);
+         return;
+      }
+      File file = File.createTempFile("s3-attachment-", ".tmp");
+      try {
+         Files.copy(stream, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException ioe){
+         file.delete();
+         throw ioe;
+      }
+      Attachment attachment = new Attachment(metadata, file);
+      synchronized (this){
+         if (!done){
+            attachments.add(attachment);
+            return;
+         }
+      }
+      // Container parse has been abandoned meanwhile.
+      attachment.delete();
+   }
+
+   /**
+    * Retrieve attachments extracted so far. Attachments found later on are discarded.
+    * @return The extracted attachments, in container order
+    */
+   public synchronized List<Attachment> takeAttachments(){
+      done = true;
+      return new ArrayList<Attachment>(attachments);
+   }
+
+   /** Delete extracted attachments, for when container could not be indexed. */
+   public void discard(){
+      for (Attachment attachment : takeAttachments()){
+         attachment.delete();
+      }
+   }
+
+   /** An attachment spooled to a temporary file. */
+   public static class Attachment{
+
+      private final Metadata metadata;
+      private final File file;
+
+      public Attachment(Metadata metadata, File file){
+         this.metadata = metadata;
+         this.file = file;
+      }
+
+      /** @return The name of attachment into its container */
+      public String getName(){
+         return metadata.get(Metadata.RESOURCE_NAME_KEY);
+      }
+
+      /** @return The metadata known by container about attachment */
+      public Metadata getMetadata(){
+         return metadata;
+      }
+
+      /** @return The temporary file holding attachment content */
+      public File getFile(){
+         return file;
+      }
+
+      /** Delete temporary file. */
+      public void delete(){
+         file.delete();
+      }
+   }
+}
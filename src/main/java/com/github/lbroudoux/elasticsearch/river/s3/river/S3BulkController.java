@@ -0,0 +1,218 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+/**
+ * An adaptive controller of bulk indexing, so that a river ingests as fast as the cluster can
+ * absorb and no faster. Bulk size grows additively while bulks are answered in time and shrinks
+ * multiplicatively when they are slow or rejected. On rejections, producers are also slowed down
+ * by an exponentially growing delay, and rejected actions are kept for being sent again.
+ * @author laurent
+ */
+public class S3BulkController{
+
+   private static final ESLogger logger = Loggers.getLogger(S3BulkController.class);
+
+   private static final long MIN_DELAY_MILLIS = 50L;
+   private static final long MAX_DELAY_MILLIS = 30000L;
+
+   private final int minBulkActions;
+   private final int maxBulkActions;
+   private final long targetLatencyMillis;
+
+   private volatile int bulkActions;
+   private volatile long delayMillis = 0L;
+
+   private final AtomicInteger pendingActions = new AtomicInteger();
+   private final ConcurrentLinkedQueue<Retry> retries = new ConcurrentLinkedQueue<Retry>();
+
+   private final AtomicLong rejectedActions = new AtomicLong();
+   private final AtomicLong rejectedBulks = new AtomicLong();
+
+   /**
+    * @param maxBulkActions The max number of actions of a bulk, this is the starting bulk size
+    * @param targetLatencyMillis The latency above which bulks are considered slow
+    */
+   public S3BulkController(int maxBulkActions, long targetLatencyMillis){
+      this.maxBulkActions = Math.max(1, maxBulkActions);
+      this.minBulkActions = Math.max(1, this.maxBulkActions / 20);
+      this.targetLatencyMillis = targetLatencyMillis;
+      this.bulkActions = this.maxBulkActions;
+   }
+
+   /** To be called when a bulk is sent, whatever triggered it. */
+   public void beforeBulk(){
+      pendingActions.set(0);
+   }
+
+   /**
+    * Record the response of a bulk: keep its rejected actions for retry and adapt bulk size.
+    * @param request The bulk request
+    * @param response The bulk response
+    * @param latencyMillis Time between bulk sending and its response
+    */
+   public void afterBulk(BulkRequest request, BulkResponse response, long latencyMillis){
+      int rejected = 0;
+      if (response.hasFailures()){
+         for (BulkItemResponse item : response.getItems()){
+            if (item.isFailed() && isRejection(item.getFailure())){
+               retries.add(new Retry(request, item.getItemId()));
+               rejected++;
+            }
+         }
+      }
+      if (rejected > 0){
+         rejectedActions.addAndGet(rejected);
+         onRejection();
+      } else {
+         onSuccess(latencyMillis);
+      }
+   }
+
+   /**
+    * Record the failure of a whole bulk. If it has been rejected, all its actions are kept for retry
+    * and bulk size shrinks; other failures (node disconnected for example) do not tell about load.
+    * @param request The bulk request
+    * @param failure The bulk failure
+    */
+   public void afterBulk(BulkRequest request, Throwable failure){
+      if (ExceptionsHelper.unwrapCause(failure) instanceof EsRejectedExecutionException){
+         for (int i = 0; i < request.numberOfActions(); i++){
+            retries.add(new Retry(request, i));
+         }
+         rejectedActions.addAndGet(request.numberOfActions());
+         rejectedBulks.incrementAndGet();
+         onRejection();
+      }
+   }
+
+   /** @return True if failure is due to cluster being overloaded */
+   public static boolean isRejection(BulkItemResponse.Failure failure){
+      return failure.getStatus() == RestStatus.TOO_MANY_REQUESTS
+            || (failure.getMessage() != null && failure.getMessage().contains("EsRejectedExecutionException"));
+   }
+
+   private synchronized void onRejection(){
+      bulkActions = Math.max(minBulkActions, bulkActions / 2);
+      delayMillis = Math.min(MAX_DELAY_MILLIS, Math.max(MIN_DELAY_MILLIS, delayMillis * 2));
+      logger.debug("Bulk rejected, bulk size is now {} actions and producers delay {} ms", bulkActions, delayMillis);
+   }
+
+   private synchronized void onSuccess(long latencyMillis){
+      if (latencyMillis > targetLatencyMillis){
+         bulkActions = Math.max(minBulkActions, bulkActions * 3 / 4);
+      } else {
+         bulkActions = Math.min(maxBulkActions, bulkActions + minBulkActions);
+         delayMillis = delayMillis / 2 < MIN_DELAY_MILLIS ? 0L : delayMillis / 2;
+      }
+   }
+
+   /**
+    * Slow down caller if cluster has recently rejected bulks.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public void throttle() throws InterruptedException{
+      long delay = delayMillis;
+      if (delay > 0){
+         Thread.sleep(delay);
+      }
+   }
+
+   /**
+    * To be called when an action has been added to bulk processor.
+    * @return True if current bulk has reached its adaptive size and should be flushed
+    */
+   public boolean added(){
+      return pendingActions.incrementAndGet() >= bulkActions;
+   }
+
+   /** @return The rejected actions to be sent again, removed from controller */
+   public List<Retry> takeRetries(){
+      List<Retry> actions = new ArrayList<Retry>();
+      Retry action;
+      while ((action = retries.poll()) != null){
+         actions.add(action);
+      }
+      return actions;
+   }
+
+   /** @return True if some rejected actions are waiting to be sent again */
+   public boolean hasRetries(){
+      return !retries.isEmpty();
+   }
+
+   /** @return The current adaptive bulk size */
+   public int getBulkActions(){
+      return bulkActions;
+   }
+
+   /** @return The current delay imposed to producers */
+   public long getDelayMillis(){
+      return delayMillis;
+   }
+
+   public long getRejectedActions(){
+      return rejectedActions.get();
+   }
+
+   public long getRejectedBulks(){
+      return rejectedBulks.get();
+   }
+
+   @Override
+   public String toString(){
+      return "bulk size " + bulkActions + " actions, producers delay " + delayMillis + " ms, "
+            + rejectedActions.get() + " rejected actions (" + rejectedBulks.get() + " whole bulks)";
+   }
+
+   /** A rejected action, along with its payload. */
+   public static class Retry{
+
+      private final ActionRequest<?> request;
+      private final Object payload;
+
+      Retry(BulkRequest bulk, int itemId){
+         this.request = bulk.requests().get(itemId);
+         this.payload = bulk.payloads() == null ? null : bulk.payloads().get(itemId);
+      }
+
+      public ActionRequest<?> getRequest(){
+         return request;
+      }
+
+      public Object getPayload(){
+         return payload;
+      }
+   }
+}
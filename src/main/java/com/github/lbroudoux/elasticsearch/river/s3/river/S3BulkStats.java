@@ -0,0 +1,127 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+/**
+ * Cumulated statistics of the bulk requests sent by a river: number of bulks, actions and
+ * bytes, failures and latency, so that bulk settings can be sized from actual document sizes.
+ * Thread safe, as bulks may be executed concurrently.
+ * @author laurent
+ */
+public class S3BulkStats{
+
+   private final AtomicLong bulks = new AtomicLong();
+   private final AtomicLong actions = new AtomicLong();
+   private final AtomicLong bytes = new AtomicLong();
+   private final AtomicLong failedBulks = new AtomicLong();
+   private final AtomicLong failedActions = new AtomicLong();
+   private final AtomicLong nanos = new AtomicLong();
+   private final AtomicLong tookMillis = new AtomicLong();
+
+   /** Start time of bulks in flight per execution id. */
+   private final ConcurrentMap<Long, Long> inFlight = new ConcurrentHashMap<Long, Long>();
+
+   public void beforeBulk(long executionId, BulkRequest request){
+      inFlight.put(executionId, System.nanoTime());
+   }
+
+   /** @return Latency of bulk in milliseconds */
+   public long afterBulk(long executionId, BulkRequest request, BulkResponse response){
+      int failures = 0;
+      if (response.hasFailures()){
+         for (BulkItemResponse item : response.getItems()){
+            if (item.isFailed()){
+               failures++;
+            }
+         }
+      }
+      tookMillis.addAndGet(response.getTookInMillis());
+      return record(executionId, request, failures);
+   }
+
+   /** @return Latency of bulk in milliseconds */
+   public long afterBulk(long executionId, BulkRequest request, Throwable failure){
+      failedBulks.incrementAndGet();
+      return record(executionId, request, request.numberOfActions());
+   }
+
+   private long record(long executionId, BulkRequest request, int failures){
+      long elapsed = 0L;
+      Long start = inFlight.remove(executionId);
+      if (start != null){
+         elapsed = System.nanoTime() - start;
+         nanos.addAndGet(elapsed);
+      }
+      bulks.incrementAndGet();
+      actions.addAndGet(request.numberOfActions());
+      bytes.addAndGet(request.estimatedSizeInBytes());
+      failedActions.addAndGet(failures);
+      return elapsed / 1000000L;
+   }
+
+   public long getBulks(){
+      return bulks.get();
+   }
+
+   public long getActions(){
+      return actions.get();
+   }
+
+   public long getBytes(){
+      return bytes.get();
+   }
+
+   public long getFailedBulks(){
+      return failedBulks.get();
+   }
+
+   public long getFailedActions(){
+      return failedActions.get();
+   }
+
+   /** @return Total time spent waiting for bulk responses */
+   public long getTotalMillis(){
+      return nanos.get() / 1000000L;
+   }
+
+   /** @return Number of bulks sent and not answered yet */
+   public int getInFlight(){
+      return inFlight.size();
+   }
+
+   @Override
+   public String toString(){
+      long count = Math.max(1L, bulks.get());
+      double seconds = Math.max(1L, nanos.get()) / 1000000000d;
+      return bulks.get() + " bulks (" + failedBulks.get() + " failed), "
+            + actions.get() + " actions (" + failedActions.get() + " failed), "
+            + (actions.get() / count) + " actions/bulk, "
+            + (bytes.get() / count / 1024L) + " KB/bulk, "
+            + (nanos.get() / count / 1000000L) + " ms/bulk (" + (tookMillis.get() / count) + " ms took by cluster), "
+            + String.format("%.1f docs/s, %.1f MB/s per bulk slot", actions.get() / seconds,
+                  bytes.get() / seconds / (1024d * 1024d));
+   }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+/**
+ * Iterates over the ids of all the documents of an index type using a scan/scroll
+ * cursor. Only ids are fetched (no stored fields nor source) and only one page of
+ * hits is kept in memory, so that indexes of any size can be browsed.
+ * @author laurent
+ */
+public class S3IndexedFileIdIterator implements Iterator<String>{
+
+   private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+   private final Client client;
+   private String scrollId;
+   private SearchHit[] hits = new SearchHit[0];
+   private int position = 0;
+   private boolean exhausted = false;
+
+   /**
+    * @param client Client for searching index
+    * @param indexName Name of index to browse
+    * @param typeName Type of documents to browse
+    * @param pageSize Number of hits retrieved per shard and per round trip
+    */
+   public S3IndexedFileIdIterator(Client client, String indexName, String typeName, int pageSize){
+      this(client, indexName, typeName, pageSize, null);
+   }
+
+   /**
+    * @param client Client for searching index
+    * @param indexName Name of index to browse
+    * @param typeName Type of documents to browse
+    * @param pageSize Number of hits retrieved per shard and per round trip
+    * @param modifiedBefore If not null, only documents whose file was modified at or before this time are browsed
+    */
+   public S3IndexedFileIdIterator(Client client, String indexName, String typeName, int pageSize, Long modifiedBefore){
+      this.client = client;
+      QueryBuilder query = QueryBuilders.matchAllQuery();
+      if (modifiedBefore != null){
+         query = QueryBuilders.filteredQuery(query,
+               FilterBuilders.rangeFilter(S3RiverUtil.DOC_FIELD_MODIFIED_DATE).lte(modifiedBefore.longValue()));
+      }
+      SearchResponse response = client.prepareSearch(indexName)
+            .setTypes(typeName)
+            .setSearchType(SearchType.SCAN)
+            .setScroll(KEEP_ALIVE)
+            .setQuery(query)
+            .setNoFields()
+            .setSize(pageSize)
+            .execute().actionGet();
+      this.scrollId = response.getScrollId();
+   }
+
+   @Override
+   public boolean hasNext(){
+      while (position >= hits.length && !exhausted){
+         fetchNextPage();
+      }
+      return position < hits.length;
+   }
+
+   @Override
+   public String next(){
+      if (!hasNext()){
+         throw new NoSuchElementException();
+      }
+      return hits[position++].getId();
+   }
+
+   @Override
+   public void remove(){
+      throw new UnsupportedOperationException();
+   }
+
+   private void fetchNextPage(){
+      SearchResponse response = client.prepareSearchScroll(scrollId)
+            .setScroll(KEEP_ALIVE)
+            .execute().actionGet();
+      scrollId = response.getScrollId();
+      hits = response.getHits().getHits();
+      position = 0;
+      if (hits.length == 0){
+         exhausted = true;
+         close();
+      }
+   }
+
+   /** Release the scroll cursor, useful if iteration is not completed. */
+   public void close(){
+      exhausted = true;
+      if (scrollId != null){
+         client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+         scrollId = null;
+      }
+   }
+}
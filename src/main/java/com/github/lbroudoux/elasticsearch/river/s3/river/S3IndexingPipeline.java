@@ -0,0 +1,288 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+/**
+ * A pipeline of worker pools for indexing Amazon S3 objects. Objects go through
+ * a fetch stage (network bound), a parse stage (CPU bound) and a bulk submission
+ * stage. Each stage has its own threads and its own bounded queue: when a queue is
+ * full, the upstream stage (or the caller of {@link #index(S3IndexingTask)}) blocks
+ * until room is available, so that a slow stage throttles the whole pipeline.
+ * @author laurent
+ */
+public class S3IndexingPipeline{
+
+   private static final ESLogger logger = Loggers.getLogger(S3IndexingPipeline.class);
+
+   /** The work done by each stage of the pipeline. */
+   public interface Stages{
+
+      /**
+       * Download content of task object.
+       * @return false if task should not go further
+       */
+      public boolean fetch(S3IndexingTask task) throws Exception;
+
+      /**
+       * Build the Json source of task object.
+       * @return false if task should not go further
+       */
+      public boolean parse(S3IndexingTask task) throws Exception;
+
+      /** Submit the built Json source to bulk processor. */
+      public void submit(S3IndexingTask task) throws Exception;
+
+      /** Called when a stage failed to handle a task. */
+      public void failed(S3IndexingTask task, Throwable t);
+   }
+
+   private final Stages stages;
+   private final ThreadPoolExecutor fetchers;
+   private final ThreadPoolExecutor parsers;
+   private final ThreadPoolExecutor submitter;
+
+   private final Object pendingLock = new Object();
+   private long pending = 0;
+
+   private final AtomicLong submitted = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+
+   /**
+    * @param stages The work of each stage
+    * @param fetchConcurrency Number of threads downloading content
+    * @param parseConcurrency Number of threads parsing content
+    * @param queueSize Capacity of each stage queue
+    * @param threadFactory Factory for all the pipeline threads
+    */
+   public S3IndexingPipeline(Stages stages, int fetchConcurrency, int parseConcurrency, int queueSize, ThreadFactory threadFactory){
+      this.stages = stages;
+      this.fetchers = newStageExecutor(fetchConcurrency, queueSize, threadFactory);
+      this.parsers = newStageExecutor(parseConcurrency, queueSize, threadFactory);
+      // Embedded tasks are queued directly, parse threads should be there to take them.
+      this.parsers.prestartAllCoreThreads();
+      // Bulk processor is synchronized, a single thread is enough for feeding it.
+      this.submitter = newStageExecutor(1, queueSize, threadFactory);
+   }
+
+   /**
+    * Submit a task to the pipeline. This blocks while fetch stage queue is full.
+    * @param task The task to index
+    * @throws EsRejectedExecutionException if pipeline has been closed
+    */
+   public void index(final S3IndexingTask task){
+      synchronized (pendingLock){
+         pending++;
+      }
+      try {
+         fetchers.execute(new TaskRunnable(task){
+            @Override
+            public void run(){
+               try {
+                  if (stages.fetch(task)){
+                     parse(task);
+                  } else {
+                     skipped(task);
+                  }
+               } catch (Throwable t){
+                  failed(task, t);
+               }
+            }
+         });
+      } catch (EsRejectedExecutionException ree){
+         done();
+         throw ree;
+      }
+   }
+
+   /**
+    * Submit a task found while parsing another one (an attachment for example) directly to
+    * parse stage. This is meant to be called from parse threads, so it never blocks: when parse
+    * stage queue is full, task is parsed by calling thread.
+    * @param task The task to parse and index
+    * @throws EsRejectedExecutionException if pipeline has been closed
+    */
+   public void parseEmbedded(S3IndexingTask task){
+      if (parsers.isShutdown()){
+         throw new EsRejectedExecutionException("Indexing pipeline is closed");
+      }
+      synchronized (pendingLock){
+         pending++;
+      }
+      Runnable parse = newParseRunnable(task);
+      if (!parsers.getQueue().offer(parse)){
+         // Waiting for room would dead lock if all parse threads were doing so.
+         parse.run();
+      }
+   }
+
+   private void parse(S3IndexingTask task){
+      parsers.execute(newParseRunnable(task));
+   }
+
+   private Runnable newParseRunnable(final S3IndexingTask task){
+      return new TaskRunnable(task){
+         @Override
+         public void run(){
+            try {
+               if (stages.parse(task)){
+                  submit(task);
+               } else {
+                  skipped(task);
+               }
+            } catch (Throwable t){
+               failed(task, t);
+            }
+         }
+      };
+   }
+
+   private void submit(final S3IndexingTask task){
+      submitter.execute(new TaskRunnable(task){
+         @Override
+         public void run(){
+            try {
+               stages.submit(task);
+               submitted.incrementAndGet();
+               done();
+            } catch (Throwable t){
+               failed(task, t);
+            }
+         }
+      });
+   }
+
+   private void skipped(S3IndexingTask task){
+      skipped.incrementAndGet();
+      done();
+   }
+
+   private void failed(S3IndexingTask task, Throwable t){
+      failed.incrementAndGet();
+      try {
+         stages.failed(task, t);
+      } finally {
+         done();
+      }
+   }
+
+   private void done(){
+      synchronized (pendingLock){
+         pending--;
+         if (pending == 0){
+            pendingLock.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Wait for all the tasks submitted so far to go through the pipeline.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public void awaitCompletion() throws InterruptedException{
+      synchronized (pendingLock){
+         while (pending > 0){
+            pendingLock.wait();
+         }
+      }
+      if (logger.isDebugEnabled()){
+         logger.debug("Indexing pipeline is idle: {} submitted, {} skipped, {} failed so far",
+               submitted.get(), skipped.get(), failed.get());
+      }
+   }
+
+   /**
+    * Stop all stages. Pending tasks are dropped and handed to {@link Stages#failed(S3IndexingTask, Throwable)},
+    * so that their resources are released and they can be recorded for later.
+    */
+   public void close(){
+      List<Runnable> dropped = new ArrayList<Runnable>();
+      dropped.addAll(fetchers.shutdownNow());
+      dropped.addAll(parsers.shutdownNow());
+      dropped.addAll(submitter.shutdownNow());
+      if (!dropped.isEmpty()){
+         logger.info("Indexing pipeline closed, {} pending tasks dropped", dropped.size());
+      }
+      for (Runnable runnable : dropped){
+         if (runnable instanceof TaskRunnable){
+            try {
+               failed(((TaskRunnable)runnable).task, new EsRejectedExecutionException("Indexing pipeline is closed"));
+            } catch (Throwable t){
+               logger.warn("Error while dropping a pending task", t);
+            }
+         }
+      }
+   }
+
+   public long getSubmittedCount(){
+      return submitted.get();
+   }
+
+   public long getSkippedCount(){
+      return skipped.get();
+   }
+
+   public long getFailedCount(){
+      return failed.get();
+   }
+
+   private static ThreadPoolExecutor newStageExecutor(int concurrency, int queueSize, ThreadFactory threadFactory){
+      return new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, new BlockingPolicy());
+   }
+
+   /** The work of a stage on a task, so that dropped work can be traced back to its task. */
+   private abstract static class TaskRunnable implements Runnable{
+
+      protected final S3IndexingTask task;
+
+      protected TaskRunnable(S3IndexingTask task){
+         this.task = task;
+      }
+   }
+
+   /** Block the producer until room is available into stage queue. */
+   private static class BlockingPolicy implements RejectedExecutionHandler{
+
+      @Override
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor){
+         if (executor.isShutdown()){
+            throw new EsRejectedExecutionException("Indexing pipeline is closed");
+         }
+         try {
+            executor.getQueue().put(r);
+         } catch (InterruptedException ie){
+            Thread.currentThread().interrupt();
+            throw new EsRejectedExecutionException("Interrupted while waiting for indexing pipeline");
+         }
+      }
+   }
+}
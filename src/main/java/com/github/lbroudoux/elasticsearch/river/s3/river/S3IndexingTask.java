@@ -0,0 +1,163 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3ObjectContent;
+/**
+ * Holder of an Amazon S3 object going through the fetch, parse and bulk
+ * submission stages of a {@link S3IndexingPipeline}.
+ * @author laurent
+ */
+public class S3IndexingTask{
+
+   /** Attachment count of a document indexed before counts were recorded, or not looked up yet. */
+   public static final int UNKNOWN_ATTACHMENTS = -1;
+
+   private final S3ObjectSummary summary;
+   private String key;
+   private String fileId;
+   private byte[] content;
+   private S3ObjectContent objectContent;
+   private MediaType mediaType;
+   private S3ParseRouter.Policy parsePolicy = S3ParseRouter.Policy.FULL;
+   private String parsedContent;
+   private String parentId;
+   private S3AttachmentExtractor.Attachment attachment;
+   private S3RetryJournal.Entry replayed;
+   private int previousAttachments = UNKNOWN_ATTACHMENTS;
+   private Metadata parsedMetadata;
+   private XContentBuilder source;
+
+   public S3IndexingTask(S3ObjectSummary summary){
+      this.summary = summary;
+   }
+
+   public S3ObjectSummary getSummary(){
+      return summary;
+   }
+
+   /** @return The decoded key of S3 object */
+   public String getKey(){
+      return key;
+   }
+   public void setKey(String key){
+      this.key = key;
+   }
+
+   /** @return The id of document into index */
+   public String getFileId(){
+      return fileId;
+   }
+   public void setFileId(String fileId){
+      this.fileId = fileId;
+   }
+
+   /** @return The raw content downloaded during fetch stage */
+   public byte[] getContent(){
+      return content;
+   }
+   public void setContent(byte[] content){
+      this.content = content;
+   }
+
+   /** @return The content stream opened during fetch stage, to be consumed by parse stage */
+   public S3ObjectContent getObjectContent(){
+      return objectContent;
+   }
+   public void setObjectContent(S3ObjectContent objectContent){
+      this.objectContent = objectContent;
+   }
+
+   /** @return The media type sniffed during fetch stage, if routing is enabled */
+   public MediaType getMediaType(){
+      return mediaType;
+   }
+   public void setMediaType(MediaType mediaType){
+      this.mediaType = mediaType;
+   }
+
+   /** @return What is done with content of S3 object */
+   public S3ParseRouter.Policy getParsePolicy(){
+      return parsePolicy;
+   }
+   public void setParsePolicy(S3ParseRouter.Policy parsePolicy){
+      this.parsePolicy = parsePolicy;
+   }
+
+   /** @return The extracted text found into parse cache during fetch stage, if any */
+   public String getParsedContent(){
+      return parsedContent;
+   }
+   public void setParsedContent(String parsedContent){
+      this.parsedContent = parsedContent;
+   }
+
+   /** @return The Tika metadata found into parse cache during fetch stage, if any */
+   public Metadata getParsedMetadata(){
+      return parsedMetadata;
+   }
+   public void setParsedMetadata(Metadata parsedMetadata){
+      this.parsedMetadata = parsedMetadata;
+   }
+
+   /** @return The id of document this attachment has been extracted from, if task is an attachment */
+   public String getParentId(){
+      return parentId;
+   }
+   public void setParentId(String parentId){
+      this.parentId = parentId;
+   }
+
+   /** @return The attachment to parse, if task is an attachment */
+   public S3AttachmentExtractor.Attachment getAttachment(){
+      return attachment;
+   }
+   public void setAttachment(S3AttachmentExtractor.Attachment attachment){
+      this.attachment = attachment;
+   }
+
+   /** @return The retry journal entry this task replays, null if task is not a replay */
+   public S3RetryJournal.Entry getReplayed(){
+      return replayed;
+   }
+   public void setReplayed(S3RetryJournal.Entry replayed){
+      this.replayed = replayed;
+   }
+
+   /** @return Number of attachments extracted from indexed version of S3 object, 0 if not indexed yet */
+   public int getPreviousAttachments(){
+      return previousAttachments;
+   }
+   public void setPreviousAttachments(int previousAttachments){
+      this.previousAttachments = previousAttachments;
+   }
+
+   /** @return The Json source built during parse stage */
+   public XContentBuilder getSource(){
+      return source;
+   }
+   public void setSource(XContentBuilder source){
+      this.source = source;
+   }
+}
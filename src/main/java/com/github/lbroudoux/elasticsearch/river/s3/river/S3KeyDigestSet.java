@@ -0,0 +1,232 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+/**
+ * A compact set of SHA-256 digests (32 bytes each) used for tracking keys found on S3.
+ * Digests are stored as 4 longs into a single primitive array using open addressing
+ * with linear probing, so that a set of millions of keys costs around 45 bytes per key
+ * with no per entry object. As digests are already uniformly distributed, their first
+ * long is directly used as hash.
+ * @author laurent
+ */
+public class S3KeyDigestSet implements Iterable<byte[]>{
+
+   /** Size of a SHA-256 digest in bytes. */
+   public static final int DIGEST_LENGTH = 32;
+
+   private static final int LONGS_PER_DIGEST = DIGEST_LENGTH / 8;
+   private static final float LOAD_FACTOR = 0.75f;
+
+   /** Digests slots, an all zeros slot is empty. */
+   private long[] table;
+   private int capacity;
+   private int size;
+   /** The all zeros digest cannot be stored into table. */
+   private boolean containsZero = false;
+
+   public S3KeyDigestSet(){
+      this(1024);
+   }
+
+   /** @param expectedSize Number of digests expected, for avoiding resizes */
+   public S3KeyDigestSet(int expectedSize){
+      int initialCapacity = 16;
+      while (initialCapacity * LOAD_FACTOR < expectedSize){
+         initialCapacity <<= 1;
+      }
+      this.capacity = initialCapacity;
+      this.table = new long[initialCapacity * LONGS_PER_DIGEST];
+   }
+
+   /**
+    * Add a digest to this set.
+    * @param digest A 32 bytes digest
+    * @return true if digest was not already present
+    */
+   public boolean add(byte[] digest){
+      long[] words = toWords(digest);
+      if (isZero(words)){
+         boolean added = !containsZero;
+         containsZero = true;
+         return added;
+      }
+      if (size + 1 > capacity * LOAD_FACTOR){
+         resize(capacity << 1);
+      }
+      if (insert(table, capacity, words)){
+         size++;
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * @param digest A digest, may have a wrong length
+    * @return true if this set contains digest
+    */
+   public boolean contains(byte[] digest){
+      if (digest == null || digest.length != DIGEST_LENGTH){
+         return false;
+      }
+      long[] words = toWords(digest);
+      if (isZero(words)){
+         return containsZero;
+      }
+      int mask = capacity - 1;
+      int slot = (int)words[0] & mask;
+      while (true){
+         int offset = slot * LONGS_PER_DIGEST;
+         if (isEmpty(table, offset)){
+            return false;
+         }
+         if (matches(table, offset, words)){
+            return true;
+         }
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   /** @return Number of digests into this set */
+   public int size(){
+      return size + (containsZero ? 1 : 0);
+   }
+
+   public boolean isEmpty(){
+      return size() == 0;
+   }
+
+   /** @return An iterator on copies of the digests of this set */
+   @Override
+   public Iterator<byte[]> iterator(){
+      return new Iterator<byte[]>(){
+         private int slot = -1;
+         private boolean zeroReturned = !containsZero;
+
+         @Override
+         public boolean hasNext(){
+            return !zeroReturned || nextSlot() < capacity;
+         }
+
+         @Override
+         public byte[] next(){
+            if (!zeroReturned){
+               zeroReturned = true;
+               return new byte[DIGEST_LENGTH];
+            }
+            slot = nextSlot();
+            if (slot >= capacity){
+               throw new NoSuchElementException();
+            }
+            return toBytes(table, slot * LONGS_PER_DIGEST);
+         }
+
+         @Override
+         public void remove(){
+            throw new UnsupportedOperationException();
+         }
+
+         private int nextSlot(){
+            int next = slot + 1;
+            while (next < capacity && isEmpty(table, next * LONGS_PER_DIGEST)){
+               next++;
+            }
+            return next;
+         }
+      };
+   }
+
+   private void resize(int newCapacity){
+      long[] newTable = new long[newCapacity * LONGS_PER_DIGEST];
+      long[] words = new long[LONGS_PER_DIGEST];
+      for (int slot = 0; slot < capacity; slot++){
+         int offset = slot * LONGS_PER_DIGEST;
+         if (!isEmpty(table, offset)){
+            System.arraycopy(table, offset, words, 0, LONGS_PER_DIGEST);
+            insert(newTable, newCapacity, words);
+         }
+      }
+      table = newTable;
+      capacity = newCapacity;
+   }
+
+   private static boolean insert(long[] table, int capacity, long[] words){
+      int mask = capacity - 1;
+      int slot = (int)words[0] & mask;
+      while (true){
+         int offset = slot * LONGS_PER_DIGEST;
+         if (isEmpty(table, offset)){
+            System.arraycopy(words, 0, table, offset, LONGS_PER_DIGEST);
+            return true;
+         }
+         if (matches(table, offset, words)){
+            return false;
+         }
+         slot = (slot + 1) & mask;
+      }
+   }
+
+   private static boolean isEmpty(long[] table, int offset){
+      for (int i = 0; i < LONGS_PER_DIGEST; i++){
+         if (table[offset + i] != 0L){
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean isZero(long[] words){
+      return isEmpty(words, 0);
+   }
+
+   private static boolean matches(long[] table, int offset, long[] words){
+      for (int i = 0; i < LONGS_PER_DIGEST; i++){
+         if (table[offset + i] != words[i]){
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static long[] toWords(byte[] digest){
+      if (digest.length != DIGEST_LENGTH){
+         throw new IllegalArgumentException("Digest should be " + DIGEST_LENGTH + " bytes long but is " + digest.length);
+      }
+      long[] words = new long[LONGS_PER_DIGEST];
+      for (int i = 0; i < DIGEST_LENGTH; i++){
+         words[i >> 3] = (words[i >> 3] << 8) | (digest[i] & 0xFF);
+      }
+      return words;
+   }
+
+   private static byte[] toBytes(long[] table, int offset){
+      byte[] digest = new byte[DIGEST_LENGTH];
+      for (int i = 0; i < DIGEST_LENGTH; i++){
+         digest[i] = (byte)(table[offset + (i >> 3)] >>> (56 - 8 * (i & 7)));
+      }
+      return digest;
+   }
+
+   @Override
+   public String toString(){
+      return "S3KeyDigestSet[size=" + size() + ", capacity=" + capacity + "]";
+   }
+}
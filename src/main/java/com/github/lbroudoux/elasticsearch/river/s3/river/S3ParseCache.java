@@ -0,0 +1,276 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tika.metadata.Metadata;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+/**
+ * An on disk cache of parse results (extracted text and Tika metadata) addressed by content:
+ * entries are keyed by S3 ETag and size, so that a content already parsed once (whatever its
+ * key, and whatever the index it went to) is not downloaded nor parsed again. Cache is bounded
+ * by its total size on disk, least recently used entries being evicted first. Recency survives
+ * restarts as it is stored as entries last modification time.
+ * @author laurent
+ */
+public class S3ParseCache{
+
+   private static final ESLogger logger = Loggers.getLogger(S3ParseCache.class);
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int FORMAT_VERSION = 1;
+   private static final String ENTRY_SUFFIX = ".parse";
+   private static final String TEMP_SUFFIX = ".tmp";
+
+   private final File directory;
+   private final long maxBytes;
+
+   /** Entries sizes on disk in access order, least recently used first. */
+   private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+   private long totalBytes = 0;
+
+   private long hits = 0;
+   private long misses = 0;
+
+   /**
+    * Open a cache, taking already present entries into account.
+    * @param directory The directory holding cache entries, created if needed
+    * @param maxBytes Max total size of entries on disk
+    * @throws IOException if directory cannot be created
+    */
+   public S3ParseCache(File directory, long maxBytes) throws IOException{
+      this.directory = directory;
+      this.maxBytes = maxBytes;
+      if (!directory.isDirectory() && !directory.mkdirs()){
+         throw new IOException("Cannot create parse cache directory " + directory);
+      }
+      File[] files = directory.listFiles();
+      Arrays.sort(files, new Comparator<File>(){
+         @Override
+         public int compare(File f1, File f2){
+            return Long.compare(f1.lastModified(), f2.lastModified());
+         }
+      });
+      synchronized (this){
+         for (File file : files){
+            String name = file.getName();
+            if (name.endsWith(ENTRY_SUFFIX)){
+               entries.put(name, file.length());
+               totalBytes += file.length();
+            } else if (name.endsWith(TEMP_SUFFIX)){
+               // Left over by an interrupted write.
+               file.delete();
+            }
+         }
+         evict();
+      }
+   }
+
+   /**
+    * Retrieve a parse result.
+    * @param etag The ETag of S3 object
+    * @param size The size of S3 object
+    * @param maxChars The max number of characters extracted by parse
+    * @param metadata The metadata to fill with cached Tika metadata
+    * @return The cached extracted text or null if not cached
+    */
+   public String get(String etag, long size, int maxChars, Metadata metadata){
+      String name = entryName(etag, size, maxChars);
+      File file = new File(directory, name);
+      synchronized (this){
+         if (entries.get(name) == null){
+            misses++;
+            return null;
+         }
+         hits++;
+         file.setLastModified(System.currentTimeMillis());
+      }
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+         if (in.readInt() != FORMAT_VERSION){
+            throw new IOException("unknown format");
+         }
+         Metadata cached = new Metadata();
+         int names = in.readInt();
+         for (int i = 0; i < names; i++){
+            String metadataName = readString(in);
+            int values = in.readInt();
+            for (int j = 0; j < values; j++){
+               cached.add(metadataName, readString(in));
+            }
+         }
+         String text = readString(in);
+         for (String metadataName : cached.names()){
+            for (String value : cached.getValues(metadataName)){
+               metadata.add(metadataName, value);
+            }
+         }
+         return text;
+      } catch (IOException ioe){
+         // Entry may have been evicted meanwhile or be corrupted, parse again.
+         logger.debug("Cannot read parse cache entry {}: {}", name, ioe.getMessage());
+         remove(name);
+         return null;
+      } finally {
+         closeQuietly(in);
+      }
+   }
+
+   /**
+    * Store a parse result.
+    * @param etag The ETag of S3 object
+    * @param size The size of S3 object
+    * @param maxChars The max number of characters extracted by parse
+    * @param text The extracted text
+    * @param metadata The Tika metadata
+    */
+   public void put(String etag, long size, int maxChars, String text, Metadata metadata){
+      String name = entryName(etag, size, maxChars);
+      File temp = new File(directory, name + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+         out.writeInt(FORMAT_VERSION);
+         String[] names = metadata.names();
+         out.writeInt(names.length);
+         for (String metadataName : names){
+            writeString(out, metadataName);
+            String[] values = metadata.getValues(metadataName);
+            out.writeInt(values.length);
+            for (String value : values){
+               writeString(out, value);
+            }
+         }
+         writeString(out, text);
+         out.close();
+         out = null;
+
+         File file = new File(directory, name);
+         synchronized (this){
+            Long previous = entries.remove(name);
+            if (previous != null){
+               totalBytes -= previous;
+            }
+            if (!temp.renameTo(file)){
+               throw new IOException("cannot rename " + temp);
+            }
+            entries.put(name, file.length());
+            totalBytes += file.length();
+            evict();
+         }
+      } catch (IOException ioe){
+         logger.warn("Cannot write parse cache entry {}: {}", name, ioe.getMessage());
+         temp.delete();
+      } finally {
+         closeQuietly(out);
+      }
+   }
+
+   /** @return Number of cache hits since cache has been opened */
+   public synchronized long getHits(){
+      return hits;
+   }
+
+   /** @return Number of cache misses since cache has been opened */
+   public synchronized long getMisses(){
+      return misses;
+   }
+
+   /** @return Total size of entries on disk */
+   public synchronized long getTotalBytes(){
+      return totalBytes;
+   }
+
+   /** Remove least recently used entries until total size is within bounds. */
+   private void evict(){
+      Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+      while (totalBytes > maxBytes && iterator.hasNext()){
+         Map.Entry<String, Long> entry = iterator.next();
+         new File(directory, entry.getKey()).delete();
+         totalBytes -= entry.getValue();
+         iterator.remove();
+      }
+   }
+
+   private synchronized void remove(String name){
+      Long size = entries.remove(name);
+      if (size != null){
+         new File(directory, name).delete();
+         totalBytes -= size;
+      }
+   }
+
+   /** Build the name of entry file. Max chars is part of it as it changes parse result. */
+   static String entryName(String etag, long size, int maxChars){
+      try {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         byte[] hash = digest.digest((etag + "/" + size + "/" + maxChars).getBytes(UTF8));
+         StringBuilder name = new StringBuilder(hash.length * 2 + ENTRY_SUFFIX.length());
+         for (byte b : hash){
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+         }
+         return name.append(ENTRY_SUFFIX).toString();
+      } catch (NoSuchAlgorithmException nsae){
+         throw new IllegalStateException("SHA-256 is not available", nsae);
+      }
+   }
+
+   /** Strings are written as length prefixed UTF-8 as they may exceed writeUTF limit. */
+   private static void writeString(DataOutputStream out, String value) throws IOException{
+      byte[] bytes = value.getBytes(UTF8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException{
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, UTF8);
+   }
+
+   private static void closeQuietly(java.io.Closeable closeable){
+      if (closeable != null){
+         try {
+            closeable.close();
+         } catch (IOException ioe){
+            logger.debug("Error while closing parse cache entry", ioe);
+         }
+      }
+   }
+}
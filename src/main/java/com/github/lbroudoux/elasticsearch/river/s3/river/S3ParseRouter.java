@@ -0,0 +1,124 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.tika.detect.Detector;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+/**
+ * Route documents to a parse policy depending on their media type so that bandwidth and CPU
+ * are not spent on binary contents yielding no useful text (images, videos, archives...).
+ * Policies are configured per media type (eg. <code>image/jpeg</code>), per top level type
+ * (eg. <code>video/*</code>) and by default (<code>*</code>).
+ * @author laurent
+ */
+public class S3ParseRouter{
+
+   /** Number of leading bytes fetched for sniffing type when key does not tell it. */
+   public static final int SNIFF_LENGTH = 8192;
+
+   /** What is done with the content of a document. */
+   public enum Policy{
+      /** Content is downloaded and its text is extracted. */
+      FULL,
+      /** Content is parsed until its metadata are extracted, text is not. */
+      METADATA,
+      /** Content is not downloaded, only S3 attributes are indexed. */
+      SKIP;
+
+      public static Policy fromString(String value){
+         return Policy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+      }
+   }
+
+   private static final String ANY_TYPE = "*";
+
+   private final Detector detector;
+   private final Map<String, Policy> policies = new HashMap<String, Policy>();
+
+   /**
+    * @param detector The type detector
+    * @param policies The policy names (full, metadata or skip) per media type
+    */
+   public S3ParseRouter(Detector detector, Map<String, String> policies){
+      this.detector = detector;
+      for (Map.Entry<String, String> policy : policies.entrySet()){
+         this.policies.put(policy.getKey().trim().toLowerCase(Locale.ROOT), Policy.fromString(policy.getValue()));
+      }
+   }
+
+   /** @return True if some documents may not be fully parsed */
+   public boolean isEnabled(){
+      for (Policy policy : policies.values()){
+         if (policy != Policy.FULL){
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Detect the media type of a document.
+    * @param name The document name, for detection by extension
+    * @param contentType The Content-Type declared at upload time, may be null
+    * @param head The first bytes of document, may be null
+    * @return The detected media type, application/octet-stream if unknown
+    * @throws IOException if head cannot be read
+    */
+   public MediaType detect(String name, String contentType, InputStream head) throws IOException{
+      Metadata metadata = new Metadata();
+      metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+      if (contentType != null){
+         metadata.set(Metadata.CONTENT_TYPE, contentType);
+      }
+      if (head == null){
+         return detector.detect(null, metadata);
+      }
+      TikaInputStream stream = TikaInputStream.get(head);
+      try {
+         return detector.detect(stream, metadata);
+      } finally {
+         stream.close();
+      }
+   }
+
+   /**
+    * Find the policy of a media type: the one of type itself, else the one of its top level
+    * type, else the default one. Documents are fully parsed if no policy applies.
+    * @param type The media type of document
+    * @return The parse policy to apply
+    */
+   public Policy policyFor(MediaType type){
+      Policy policy = policies.get(type.getBaseType().toString());
+      if (policy == null){
+         policy = policies.get(type.getType() + "/" + ANY_TYPE);
+      }
+      if (policy == null){
+         policy = policies.get(ANY_TYPE);
+      }
+      return policy == null ? Policy.FULL : policy;
+   }
+}
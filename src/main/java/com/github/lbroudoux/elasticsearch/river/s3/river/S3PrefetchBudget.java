@@ -0,0 +1,65 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+/**
+ * A semaphore on bytes bounding the content downloaded ahead of parse stage. Fetch threads
+ * reserve the size of an object before downloading it and parse threads release it once content
+ * has been consumed, so that memory stays bounded whatever the mix of object sizes. An object
+ * larger than the whole budget is let through alone.
+ * @author laurent
+ */
+public class S3PrefetchBudget{
+
+   private final long limit;
+   private long inFlight = 0;
+
+   /** @param limit Maximum number of bytes downloaded ahead */
+   public S3PrefetchBudget(long limit){
+      this.limit = limit;
+   }
+
+   /**
+    * Reserve room for an object, waiting for enough bytes to be released.
+    * @param bytes Size of object
+    * @return The number of bytes actually reserved, to be given back to {@link #release(long)}
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public synchronized long acquire(long bytes) throws InterruptedException{
+      long reserved = Math.min(Math.max(bytes, 0), limit);
+      while (inFlight > 0 && inFlight + reserved > limit){
+         wait();
+      }
+      inFlight += reserved;
+      return reserved;
+   }
+
+   /** Give back bytes reserved by {@link #acquire(long)}. */
+   public synchronized void release(long reserved){
+      inFlight -= reserved;
+      notifyAll();
+   }
+
+   public long getLimit(){
+      return limit;
+   }
+
+   public synchronized long getInFlight(){
+      return inFlight;
+   }
+}
@@ -0,0 +1,344 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+/**
+ * A local append-only journal of bulk actions that failed, so that they are not lost when the
+ * river has already moved its scan bookmark. Actions are recorded by S3 key (or by document id
+ * for deletions) and replayed with an exponential backoff: an action failing for the n-th time
+ * is replayed no sooner than <code>backoff * 2^(n-1)</code> after its failure. A replayed action
+ * stays into journal until it is acknowledged or fails again, so that it is replayed once more
+ * if river stops meanwhile.
+ * @author laurent
+ */
+public class S3RetryJournal implements Closeable{
+
+   private static final ESLogger logger = Loggers.getLogger(S3RetryJournal.class);
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final long MAX_BACKOFF_MILLIS = 60L * 60L * 1000L;
+
+   private final File file;
+   private final long backoffMillis;
+   private Writer writer;
+   /** Entries taken for replay and not acknowledged yet, by document. */
+   private final Map<String, Entry> inFlight = new HashMap<String, Entry>();
+
+   /**
+    * Open a journal, keeping entries already present.
+    * @param file The journal file, created if needed
+    * @param backoffMillis The delay before first replay of a failed action
+    * @throws IOException if journal cannot be opened
+    */
+   public S3RetryJournal(File file, long backoffMillis) throws IOException{
+      this.file = file;
+      this.backoffMillis = backoffMillis;
+      File directory = file.getAbsoluteFile().getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs()){
+         throw new IOException("Cannot create retry journal directory " + directory);
+      }
+      this.writer = openWriter();
+   }
+
+   /**
+    * Record a failed action. Entry is written to disk before method returns. It replaces the entry
+    * of same document, even if this one has been taken for replay.
+    * @param entry The failed action
+    */
+   public synchronized void append(Entry entry){
+      try {
+         writeLine(entry.toLine());
+         inFlight.remove(entry.getDocument());
+      } catch (IOException ioe){
+         logger.error("Cannot write into retry journal {}, action on {} is lost", ioe, file, entry.getId());
+      }
+   }
+
+   /**
+    * Acknowledge a replayed action that succeeded or that has not to be replayed anymore. Entry is
+    * removed from journal, unless a newer failure of same document has been appended since.
+    * @param entry The entry taken for replay
+    */
+   public synchronized void ack(Entry entry){
+      try {
+         writeLine(entry.toAckLine());
+         if (entry.isSameFailure(inFlight.get(entry.getDocument()))){
+            inFlight.remove(entry.getDocument());
+         }
+      } catch (IOException ioe){
+         logger.warn("Cannot write into retry journal {}, action on {} will be replayed again", ioe, file, entry.getId());
+      }
+   }
+
+   /**
+    * Take the actions whose backoff is over. Taken entries stay into journal until they are
+    * acknowledged or appended again, and are not taken again meanwhile by this journal instance;
+    * after a restart, entries not acknowledged are taken again. Entries of a same document are
+    * merged, last one wins.
+    * @param now The current time
+    * @return The actions to replay
+    * @throws IOException if journal cannot be read or rewritten
+    */
+   public synchronized List<Entry> takeDue(long now) throws IOException{
+      writer.close();
+      try {
+         Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null){
+               Entry entry = Entry.fromLine(line);
+               Entry ack = entry == null ? Entry.fromAckLine(line) : null;
+               if (entry != null){
+                  entries.remove(entry.getDocument());
+                  entries.put(entry.getDocument(), entry);
+               } else if (ack != null){
+                  // Replay of this failure succeeded, a newer failure is kept.
+                  if (ack.isSameFailure(entries.get(ack.getDocument()))){
+                     entries.remove(ack.getDocument());
+                  }
+               } else if (!line.isEmpty()){
+                  // A torn write of a previous crash, nothing to replay.
+                  logger.warn("Ignoring corrupted retry journal line in {}", file);
+               }
+            }
+         } finally {
+            reader.close();
+         }
+
+         // Keep entries not acknowledged yet into a compacted journal, including the due ones.
+         List<Entry> due = new ArrayList<Entry>();
+         File compacted = new File(file.getPath() + ".tmp");
+         Writer compactedWriter = new OutputStreamWriter(new FileOutputStream(compacted), UTF8);
+         try {
+            for (Entry entry : entries.values()){
+               if (now >= entry.getFailedAt() + backoffFor(entry.getAttempts())
+                     && !entry.isSameFailure(inFlight.get(entry.getDocument()))){
+                  due.add(entry);
+               }
+               compactedWriter.write(entry.toLine());
+               compactedWriter.write('\n');
+            }
+         } finally {
+            compactedWriter.close();
+         }
+         if (!compacted.renameTo(file)){
+            file.delete();
+            if (!compacted.renameTo(file)){
+               throw new IOException("Cannot replace retry journal " + file);
+            }
+         }
+         // Acknowledged entries are gone, in flight ones are still into journal.
+         inFlight.keySet().retainAll(entries.keySet());
+         for (Entry entry : due){
+            inFlight.put(entry.getDocument(), entry);
+         }
+         return due;
+      } finally {
+         // Journal stays writable even if it could not be compacted.
+         writer = openWriter();
+      }
+   }
+
+   /** @return The delay to wait before replaying an action that failed attempts times */
+   long backoffFor(int attempts){
+      long backoff = backoffMillis;
+      for (int i = 1; i < attempts && backoff < MAX_BACKOFF_MILLIS; i++){
+         backoff *= 2;
+      }
+      return Math.min(backoff, MAX_BACKOFF_MILLIS);
+   }
+
+   @Override
+   public synchronized void close() throws IOException{
+      writer.close();
+   }
+
+   private void writeLine(String line) throws IOException{
+      writer.write(line);
+      writer.write('\n');
+      writer.flush();
+   }
+
+   private Writer openWriter() throws IOException{
+      return new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+   }
+
+   /**
+    * Where a bulk action comes from: the S3 key to index again (null for deletions) and the
+    * number of times the action has already failed. This is used as bulk action payload.
+    */
+   public static class Origin{
+
+      private final String key;
+      private final int attempts;
+      private final Entry replayed;
+
+      public Origin(String key, int attempts){
+         this(key, attempts, null);
+      }
+
+      private Origin(String key, int attempts, Entry replayed){
+         this.key = key;
+         this.attempts = attempts;
+         this.replayed = replayed;
+      }
+
+      /** @return The S3 key, as listed (URL encoded), null for deletions */
+      public String getKey(){
+         return key;
+      }
+
+      public int getAttempts(){
+         return attempts;
+      }
+
+      /** @return The journal entry replayed by action, to be acknowledged once done, null if none */
+      public Entry getReplayed(){
+         return replayed;
+      }
+
+      /** @return The journal entry recording a new failure of action */
+      public Entry failed(boolean delete, String index, String type, String id, long failedAt){
+         return new Entry(delete, index, type, id, key, attempts + 1, failedAt);
+      }
+   }
+
+   /** A failed action. */
+   public static class Entry{
+
+      private final boolean delete;
+      private final String index;
+      private final String type;
+      private final String id;
+      private final String key;
+      private final int attempts;
+      private final long failedAt;
+
+      public Entry(boolean delete, String index, String type, String id, String key, int attempts, long failedAt){
+         this.delete = delete;
+         this.index = index;
+         this.type = type;
+         this.id = id;
+         this.key = key;
+         this.attempts = attempts;
+         this.failedAt = failedAt;
+      }
+
+      /** @return True for a deletion, false for an indexation */
+      public boolean isDelete(){
+         return delete;
+      }
+
+      public String getIndex(){
+         return index;
+      }
+
+      public String getType(){
+         return type;
+      }
+
+      public String getId(){
+         return id;
+      }
+
+      /** @return The S3 key to index again, as listed (URL encoded), null for deletions */
+      public String getKey(){
+         return key;
+      }
+
+      /** @return Number of times action has failed */
+      public int getAttempts(){
+         return attempts;
+      }
+
+      public long getFailedAt(){
+         return failedAt;
+      }
+
+      /** @return The origin of actions replaying this entry */
+      public Origin toOrigin(){
+         return new Origin(key, attempts, this);
+      }
+
+      /** @return The document this action applies to */
+      String getDocument(){
+         return index + "/" + type + "/" + id;
+      }
+
+      /** @return True if other entry records the same failure of same document */
+      boolean isSameFailure(Entry other){
+         return other != null && getDocument().equals(other.getDocument()) && attempts == other.attempts
+               && failedAt == other.failedAt;
+      }
+
+      String toLine(){
+         return (delete ? "D" : "I") + '\t' + attempts + '\t' + failedAt + '\t' + index + '\t' + type + '\t'
+               + id + '\t' + (key == null ? "" : key);
+      }
+
+      /** @return The line telling that replay of this entry is over */
+      String toAckLine(){
+         return "A\t" + attempts + '\t' + failedAt + '\t' + index + '\t' + type + '\t' + id + '\t';
+      }
+
+      static Entry fromLine(String line){
+         String[] fields = line.split("\t", -1);
+         if (fields.length != 7 || !("D".equals(fields[0]) || "I".equals(fields[0]))){
+            return null;
+         }
+         return parse(fields);
+      }
+
+      static Entry fromAckLine(String line){
+         String[] fields = line.split("\t", -1);
+         if (fields.length != 7 || !"A".equals(fields[0])){
+            return null;
+         }
+         return parse(fields);
+      }
+
+      private static Entry parse(String[] fields){
+         try {
+            return new Entry("D".equals(fields[0]), fields[3], fields[4], fields[5],
+                  fields[6].isEmpty() ? null : fields[6], Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+         } catch (NumberFormatException nfe){
+            return null;
+         }
+      }
+   }
+}
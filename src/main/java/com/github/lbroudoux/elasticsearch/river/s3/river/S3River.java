@@ -20,22 +20,35 @@ package com.github.lbroudoux.elasticsearch.river.s3.river;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.security.NoSuchAlgorithmException;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import org.apache.tika.metadata.Metadata;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
 import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
 import org.elasticsearch.action.bulk.*;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockException;
@@ -43,20 +56,31 @@ import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.ImmutableSettings;
-import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
 import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
-import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3ObjectContent;
 import com.github.lbroudoux.elasticsearch.river.s3.connector.S3ObjectSummaries;
 import com.github.lbroudoux.elasticsearch.river.s3.connector.S3Connector;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3Event;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3EventMessage;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3EventSource;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3FileEventSource;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3ObjectSummaryListener;
+import com.github.lbroudoux.elasticsearch.river.s3.connector.S3SqsEventSource;
 import com.github.lbroudoux.elasticsearch.river.s3.river.TikaHolder;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -73,16 +97,44 @@ public class S3River extends AbstractRiverComponent implements River{
    private final String typeName;
 
    private final int bulkSize;
+
+   private final ByteSizeValue bulkSizeBytes;
+
+   private final TimeValue flushInterval;
+
+   private final int concurrentBulkRequests;
+
+   private final TimeValue bulkTargetLatency;
+
+   private volatile S3BulkController bulkController;
+
+   private volatile S3RetryJournal retryJournal;
+
+   private volatile S3RiverState riverState;
+
+   private final S3BulkStats bulkStats = new S3BulkStats();
    
    private volatile Thread feedThread;
 
    private volatile BulkProcessor bulkProcessor;
 
+   private volatile S3IndexingPipeline indexingPipeline;
+
+   private volatile TikaParserEngine parserEngine;
+
+   private volatile S3ParseCache parseCache;
+
+   private volatile S3PrefetchBudget prefetchBudget;
+
+   private final S3ParseRouter parseRouter;
+
    private volatile boolean closed = false;
    
    private final S3RiverFeedDefinition feedDefinition;
    
    private final S3Connector s3;
+
+   private final S3EventSource eventSource;
    
    
    @Inject
@@ -107,9 +159,50 @@ public class S3River extends AbstractRiverComponent implements River{
          boolean jsonSupport = XContentMapValues.nodeBooleanValue(feed.get("json_support"), false);
          boolean trackS3Deletions = XContentMapValues.nodeBooleanValue(feed.get("deleteS3"), true);
          boolean truncateInitial = XContentMapValues.nodeBooleanValue(feed.get("truncate_initial"), false);
+         int listingConcurrency = XContentMapValues.nodeIntegerValue(feed.get("listing_concurrency"), 1);
+         int concurrency = XContentMapValues.nodeIntegerValue(feed.get("concurrency"), 1);
+         int parseConcurrency = XContentMapValues.nodeIntegerValue(feed.get("parse_concurrency"),
+               Math.min(concurrency, EsExecutors.boundedNumberOfProcessors(settings.globalSettings())));
+         int queueSize = XContentMapValues.nodeIntegerValue(feed.get("queue_size"), 10);
+         boolean userMetadata = XContentMapValues.nodeBooleanValue(feed.get("user_metadata"), true);
+         boolean etagCheck = XContentMapValues.nodeBooleanValue(feed.get("etag_check"), true);
+         long parseTimeout = XContentMapValues.nodeLongValue(feed.get("parse_timeout"), 5 * 60 * 1000);
+         long maxInputBytes = XContentMapValues.nodeLongValue(feed.get("max_input_bytes"), -1);
+         int maxExtractedChars = XContentMapValues.nodeIntegerValue(feed.get("max_extracted_chars"),
+               TikaHolder.engine().getMaxStringLength());
+         boolean forkParsing = XContentMapValues.nodeBooleanValue(feed.get("fork_parsing"), false);
+         int forkPoolSize = XContentMapValues.nodeIntegerValue(feed.get("fork_pool_size"), parseConcurrency);
+         String forkHeap = XContentMapValues.nodeStringValue(feed.get("fork_heap"), null);
+         String parseCacheDir = XContentMapValues.nodeStringValue(feed.get("parse_cache_dir"), null);
+         long parseCacheSize = XContentMapValues.nodeLongValue(feed.get("parse_cache_size"), 1024L * 1024L * 1024L);
+         boolean extractAttachments = XContentMapValues.nodeBooleanValue(feed.get("extract_attachments"), false);
+         String retryJournal = XContentMapValues.nodeStringValue(feed.get("retry_journal"),
+               defaultRetryJournal(riverName, settings));
+         long retryBackoff = XContentMapValues.nodeLongValue(feed.get("retry_backoff"), 60 * 1000);
+         int retryMaxAttempts = XContentMapValues.nodeIntegerValue(feed.get("retry_max_attempts"), 10);
+         String eventSource = XContentMapValues.nodeStringValue(feed.get("event_source"), null);
+         String eventQueue = XContentMapValues.nodeStringValue(feed.get("event_queue"), null);
+         long eventWait = XContentMapValues.nodeLongValue(feed.get("event_wait"), 20 * 1000);
+         long reconcileRate = XContentMapValues.nodeLongValue(feed.get("reconcile_rate"), 24 * 60 * 60 * 1000);
+         String inventory = XContentMapValues.nodeStringValue(feed.get("inventory"), null);
+         int inventoryConcurrency = XContentMapValues.nodeIntegerValue(feed.get("inventory_concurrency"),
+               EsExecutors.boundedNumberOfProcessors(settings.globalSettings()));
+         long rangedDownloadThreshold = XContentMapValues.nodeLongValue(feed.get("ranged_download_threshold"), -1);
+         long rangedDownloadPartSize = XContentMapValues.nodeLongValue(feed.get("ranged_download_part_size"), 8 * 1024 * 1024);
+         int rangedDownloadConcurrency = XContentMapValues.nodeIntegerValue(feed.get("ranged_download_concurrency"), 4);
+         long prefetchBytes = XContentMapValues.nodeLongValue(feed.get("prefetch_bytes"), -1);
+         long spoolThreshold = XContentMapValues.nodeLongValue(feed.get("spool_threshold"), 1024 * 1024);
+         Map<String, String> parsePolicies = new HashMap<String, String>();
+         if (feed.get("parse_policies") instanceof Map){
+            for (Map.Entry<String, Object> policy : ((Map<String, Object>)feed.get("parse_policies")).entrySet()){
+               parsePolicies.put(policy.getKey(), XContentMapValues.nodeStringValue(policy.getValue(), null));
+            }
+         }
          
          String[] includes = S3RiverUtil.buildArrayFromSettings(settings.settings(), "amazon-s3.includes");
          String[] excludes = S3RiverUtil.buildArrayFromSettings(settings.settings(), "amazon-s3.excludes");
+         String[] listingSplitPoints = S3RiverUtil.buildArrayFromSettings(settings.settings(), "amazon-s3.listing_split_points");
+         Arrays.sort(listingSplitPoints);
          
          // Retrieve connection settings.
          String accessKey = XContentMapValues.nodeStringValue(feed.get("accessKey"), null);
@@ -117,13 +210,50 @@ public class S3River extends AbstractRiverComponent implements River{
          
          feedDefinition = new S3RiverFeedDefinition(feedname, bucket, pathPrefix, downloadHost,
                updateRate, Arrays.asList(includes), Arrays.asList(excludes), accessKey, secretKey, jsonSupport, trackS3Deletions, truncateInitial);
+         feedDefinition.setListingConcurrency(listingConcurrency);
+         feedDefinition.setListingSplitPoints(Arrays.asList(listingSplitPoints));
+         feedDefinition.setConcurrency(concurrency);
+         feedDefinition.setParseConcurrency(parseConcurrency);
+         feedDefinition.setQueueSize(queueSize);
+         feedDefinition.setUserMetadata(userMetadata);
+         feedDefinition.setEtagCheck(etagCheck);
+         feedDefinition.setParseTimeout(parseTimeout);
+         feedDefinition.setMaxInputBytes(maxInputBytes);
+         feedDefinition.setMaxExtractedChars(maxExtractedChars);
+         feedDefinition.setForkParsing(forkParsing);
+         feedDefinition.setForkPoolSize(forkPoolSize);
+         feedDefinition.setForkHeap(forkHeap);
+         feedDefinition.setParseCacheDir(parseCacheDir);
+         feedDefinition.setParseCacheSize(parseCacheSize);
+         feedDefinition.setParsePolicies(parsePolicies);
+         feedDefinition.setExtractAttachments(extractAttachments);
+         feedDefinition.setRetryJournal(retryJournal);
+         feedDefinition.setRetryBackoff(retryBackoff);
+         feedDefinition.setRetryMaxAttempts(retryMaxAttempts);
+         feedDefinition.setEventSource(eventSource);
+         feedDefinition.setEventQueue(eventQueue);
+         feedDefinition.setEventWait(eventWait);
+         feedDefinition.setReconcileRate(reconcileRate);
+         feedDefinition.setInventory(inventory);
+         feedDefinition.setInventoryConcurrency(inventoryConcurrency);
+         feedDefinition.setRangedDownloadThreshold(rangedDownloadThreshold);
+         feedDefinition.setRangedDownloadPartSize(rangedDownloadPartSize);
+         feedDefinition.setRangedDownloadConcurrency(rangedDownloadConcurrency);
+         feedDefinition.setPrefetchBytes(prefetchBytes);
+         feedDefinition.setSpoolThreshold(spoolThreshold);
       } else {
          logger.error("You didn't define the amazon-s3 settings. Exiting... See https://github.com/lbroudoux/es-amazon-s3-river");
          indexName = null;
          typeName = null;
          bulkSize = 100;
+         bulkSizeBytes = null;
+         flushInterval = null;
+         concurrentBulkRequests = 1;
+         bulkTargetLatency = null;
          feedDefinition = null;
+         parseRouter = null;
          s3 = null;
+         eventSource = null;
          return;
       }
       
@@ -134,10 +264,21 @@ public class S3River extends AbstractRiverComponent implements River{
          indexName = XContentMapValues.nodeStringValue(indexSettings.get("index"), riverName.name());
          typeName = XContentMapValues.nodeStringValue(indexSettings.get("type"), S3RiverUtil.INDEX_TYPE_DOC);
          bulkSize = XContentMapValues.nodeIntegerValue(indexSettings.get("bulk_size"), 100);
+         bulkSizeBytes = ByteSizeValue.parseBytesSizeValue(
+               XContentMapValues.nodeStringValue(indexSettings.get("bulk_size_bytes"), "5mb"));
+         flushInterval = TimeValue.parseTimeValue(
+               XContentMapValues.nodeStringValue(indexSettings.get("flush_interval"), null), TimeValue.timeValueSeconds(5));
+         concurrentBulkRequests = XContentMapValues.nodeIntegerValue(indexSettings.get("concurrent_bulk_requests"), 1);
+         bulkTargetLatency = TimeValue.parseTimeValue(
+               XContentMapValues.nodeStringValue(indexSettings.get("bulk_target_latency"), null), TimeValue.timeValueSeconds(2));
       } else {
          indexName = riverName.name();
          typeName = S3RiverUtil.INDEX_TYPE_DOC;
          bulkSize = 100;
+         bulkSizeBytes = new ByteSizeValue(5, ByteSizeUnit.MB);
+         flushInterval = TimeValue.timeValueSeconds(5);
+         concurrentBulkRequests = 1;
+         bulkTargetLatency = TimeValue.timeValueSeconds(2);
       }
       
       // We need to connect to Amazon S3 after ensure mandatory settings are here.
@@ -153,7 +294,17 @@ public class S3River extends AbstractRiverComponent implements River{
          logger.error("Amazon S3 bucket should not be null. Please fix this.");
          throw new IllegalArgumentException("Amazon S3 bucket should not be null.");
       }
+      try {
+         parseRouter = new S3ParseRouter(TikaHolder.tika().getDetector(), feedDefinition.getParsePolicies());
+      } catch (IllegalArgumentException iae){
+         logger.error("Amazon S3 parse_policies should be one of full, metadata or skip. Please fix this.");
+         throw iae;
+      }
       s3 = new S3Connector(feedDefinition.getAccessKey(), feedDefinition.getSecretKey());
+      s3.setListingConcurrency(feedDefinition.getListingConcurrency());
+      s3.setListingSplitPoints(feedDefinition.getListingSplitPoints());
+      s3.setInventoryLocation(feedDefinition.getInventory());
+      s3.setInventoryConcurrency(feedDefinition.getInventoryConcurrency());
       try {
          s3.connectUserBucket(feedDefinition.getBucket(), feedDefinition.getPathPrefix());
       } catch (AmazonS3Exception ase){
@@ -161,8 +312,60 @@ public class S3River extends AbstractRiverComponent implements River{
                + "Either access key, secret key or bucket name are incorrect");
          throw ase;
       }
+      s3.setRangedDownload(feedDefinition.getRangedDownloadThreshold(), feedDefinition.getRangedDownloadPartSize(),
+            feedDefinition.getRangedDownloadConcurrency());
+      s3.setSpoolThreshold(feedDefinition.getSpoolThreshold());
+
+      // Changes may also be notified through a queue of S3 events.
+      if (feedDefinition.getEventSource() != null && feedDefinition.getEventQueue() == null){
+         logger.error("Amazon S3 event_queue should not be null when event_source is set. Please fix this.");
+         throw new IllegalArgumentException("Amazon S3 event_queue should not be null when event_source is set.");
+      }
+      if (feedDefinition.getEventSource() == null){
+         eventSource = null;
+      } else if ("sqs".equals(feedDefinition.getEventSource())){
+         eventSource = new S3SqsEventSource(feedDefinition.getAccessKey(), feedDefinition.getSecretKey(),
+               feedDefinition.getEventQueue());
+      } else if ("file".equals(feedDefinition.getEventSource())){
+         eventSource = new S3FileEventSource(new File(feedDefinition.getEventQueue()));
+      } else {
+         logger.error("Amazon S3 event_source should be one of sqs or file. Please fix this.");
+         throw new IllegalArgumentException("Amazon S3 event_source should be one of sqs or file.");
+      }
    }
    
+   /** Record a failed bulk action into retry journal, if it can be replayed. */
+   private void journalFailedAction(ActionRequest<?> action, Object payload){
+      if (retryJournal == null || !(payload instanceof S3RetryJournal.Origin)){
+         // River state updates are not replayed, next checkpoint overwrites them.
+         return;
+      }
+      S3RetryJournal.Origin origin = (S3RetryJournal.Origin)payload;
+      if (action instanceof DeleteRequest){
+         DeleteRequest delete = (DeleteRequest)action;
+         retryJournal.append(origin.failed(true, delete.index(), delete.type(), delete.id(), System.currentTimeMillis()));
+      } else if (action instanceof IndexRequest && origin.getKey() != null){
+         IndexRequest index = (IndexRequest)action;
+         retryJournal.append(origin.failed(false, index.index(), index.type(), index.id(), System.currentTimeMillis()));
+      }
+   }
+
+   /** Acknowledge the retry journal entry replayed by a bulk action, if any, once it is over. */
+   private void ackReplayedAction(Object payload){
+      if (retryJournal != null && payload instanceof S3RetryJournal.Origin
+            && ((S3RetryJournal.Origin)payload).getReplayed() != null){
+         retryJournal.ack(((S3RetryJournal.Origin)payload).getReplayed());
+      }
+   }
+
+   /** Retry journal is kept under node data directory by default. */
+   private static String defaultRetryJournal(RiverName riverName, RiverSettings settings){
+      String[] dataPaths = settings.globalSettings().getAsArray("path.data");
+      String dataPath = dataPaths.length > 0 ? dataPaths[0]
+            : settings.globalSettings().get("path.home", System.getProperty("java.io.tmpdir")) + File.separator + "data";
+      return dataPath + File.separator + "s3-river" + File.separator + riverName.name() + ".retry";
+   }
+
    @Override
    public void start(){
       if (logger.isInfoEnabled()){
@@ -213,6 +416,10 @@ public class S3River extends AbstractRiverComponent implements River{
          // If needed, we create the new mapping for files
          if (!feedDefinition.isJsonSupport()) {
             pushMapping(indexName, typeName, S3RiverUtil.buildS3FileMapping(typeName));
+            if (feedDefinition.isExtractAttachments()){
+               pushMapping(indexName, S3RiverUtil.INDEX_TYPE_ATTACHMENT,
+                     S3RiverUtil.buildS3FileMapping(S3RiverUtil.INDEX_TYPE_ATTACHMENT));
+            }
          }
       } catch (Exception e) {
          logger.warn("Failed to create mapping for [{}/{}], disabling river {}...",
@@ -220,15 +427,37 @@ public class S3River extends AbstractRiverComponent implements River{
          return;
       }
 
-      // Creating bulk processor
+      // Failed bulk actions are recorded for being replayed later on.
+      try {
+         this.retryJournal = new S3RetryJournal(new File(feedDefinition.getRetryJournal()), feedDefinition.getRetryBackoff());
+      } catch (IOException ioe){
+         logger.warn("Cannot open retry journal {}, failed documents will only be indexed again on change", ioe,
+               feedDefinition.getRetryJournal());
+      }
+
+      // Creating bulk processor, whose bulks size adapts to cluster load.
+      this.bulkController = new S3BulkController(bulkSize, bulkTargetLatency.millis());
       this.bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
          @Override
          public void beforeBulk(long id, BulkRequest request) {
+            bulkStats.beforeBulk(id, request);
+            bulkController.beforeBulk();
             logger.debug("Going to execute new bulk composed of {} actions", request.numberOfActions());
          }
 
          @Override
          public void afterBulk(long id, BulkRequest request, BulkResponse response) {
+            bulkController.afterBulk(request, response, bulkStats.afterBulk(id, request, response));
+            for (BulkItemResponse item : response.getItems()) {
+               Object payload = request.payloads() == null ? null : request.payloads().get(item.getItemId());
+               // Rejected items are sent again by controller, retrying bad requests is useless.
+               if (item.isFailed() && !S3BulkController.isRejection(item.getFailure())
+                     && item.getFailure().getStatus().getStatus() >= 500) {
+                  journalFailedAction(request.requests().get(item.getItemId()), payload);
+               } else if (!item.isFailed() || !S3BulkController.isRejection(item.getFailure())) {
+                  ackReplayedAction(payload);
+               }
+            }
             logger.debug("Executed bulk composed of {} actions", request.numberOfActions());
             if (response.hasFailures()) {
                logger.warn("There was failures while executing bulk", response.buildFailureMessage());
@@ -245,15 +474,66 @@ public class S3River extends AbstractRiverComponent implements River{
 
          @Override
          public void afterBulk(long id, BulkRequest request, Throwable throwable) {
+            bulkStats.afterBulk(id, request, throwable);
+            bulkController.afterBulk(request, throwable);
+            if (!(ExceptionsHelper.unwrapCause(throwable) instanceof EsRejectedExecutionException)) {
+               for (int i = 0; i < request.numberOfActions(); i++) {
+                  journalFailedAction(request.requests().get(i), request.payloads() == null ? null : request.payloads().get(i));
+               }
+            }
             logger.warn("Error executing bulk", throwable);
          }
       })
             .setBulkActions(bulkSize)
+            .setBulkSize(bulkSizeBytes)
+            .setFlushInterval(flushInterval)
+            .setConcurrentRequests(concurrentBulkRequests)
             .build();
 
+      // Parse within this JVM or within a pool of child JVMs.
+      if (feedDefinition.isForkParsing() && !feedDefinition.isJsonSupport()){
+         if (feedDefinition.isExtractAttachments()){
+            logger.warn("Attachments cannot be extracted by child JVMs, they will be indexed within their container");
+         }
+         this.parserEngine = new TikaForkParserEngine(TikaHolder.tika().getParser(), TikaHolder.tika().getDetector(),
+               TikaHolder.engine().getMaxStringLength(), feedDefinition.getForkPoolSize(), feedDefinition.getForkHeap());
+      } else {
+         this.parserEngine = TikaHolder.engine();
+      }
+
+      // Reuse parse results of contents already parsed once.
+      if (feedDefinition.getParseCacheDir() != null && feedDefinition.isExtractAttachments()){
+         logger.warn("Parse cache does not hold attachments, it is not used when extract_attachments is on");
+      } else if (feedDefinition.getParseCacheDir() != null && !feedDefinition.isJsonSupport()){
+         try {
+            this.parseCache = new S3ParseCache(new File(feedDefinition.getParseCacheDir()), feedDefinition.getParseCacheSize());
+         } catch (IOException ioe){
+            logger.warn("Cannot open parse cache into {}, documents will always be parsed", ioe,
+                  feedDefinition.getParseCacheDir());
+         }
+      }
+
+      // Contents may be downloaded ahead of parse stage, up to a number of bytes.
+      if (feedDefinition.getPrefetchBytes() > 0 && !feedDefinition.isJsonSupport()){
+         this.prefetchBudget = new S3PrefetchBudget(Math.min(feedDefinition.getPrefetchBytes(), Integer.MAX_VALUE));
+         // Download buffers of prefetched contents are reused.
+         s3.setBufferPoolSize(feedDefinition.getPrefetchBytes());
+      } else if (feedDefinition.getSpoolThreshold() > 0){
+         // Download buffers of small contents waiting for parse stage are reused.
+         s3.setBufferPoolSize(feedDefinition.getSpoolThreshold()
+               * (feedDefinition.getQueueSize() + feedDefinition.getParseConcurrency()));
+      }
+
+      // Creating the fetch, parse and bulk submission worker pools.
+      riverState = new S3RiverState(client, riverName.name(), feedDefinition.getFeedname());
+      S3Scanner scanner = new S3Scanner(feedDefinition);
+      this.indexingPipeline = new S3IndexingPipeline(scanner, feedDefinition.getConcurrency(),
+            feedDefinition.getParseConcurrency(), feedDefinition.getQueueSize(),
+            EsExecutors.daemonThreadFactory(settings.globalSettings(), "s3_indexer"));
+
       // We create as many Threads as there are feeds.
       feedThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "s3_slurper")
-            .newThread(new S3Scanner(feedDefinition));
+            .newThread(scanner);
       feedThread.start();
    }
    
@@ -264,7 +544,28 @@ public class S3River extends AbstractRiverComponent implements River{
       }
       closed = true;
       
+      if (indexingPipeline != null){
+         indexingPipeline.close();
+      }
+      if (parserEngine instanceof TikaForkParserEngine){
+         ((TikaForkParserEngine)parserEngine).close();
+      }
       bulkProcessor.close();
+      s3.close();
+      if (eventSource != null){
+         try {
+            eventSource.close();
+         } catch (IOException ioe){
+            logger.warn("Error while closing event source", ioe);
+         }
+      }
+      if (retryJournal != null){
+         try {
+            retryJournal.close();
+         } catch (IOException ioe){
+            logger.warn("Error while closing retry journal", ioe);
+         }
+      }
 
       // We have to close the Thread.
       if (feedThread != null){
@@ -343,15 +644,18 @@ public class S3River extends AbstractRiverComponent implements River{
    }
    
    /** */
-   private class S3Scanner implements Runnable{
+   private class S3Scanner implements Runnable, S3IndexingPipeline.Stages{
       
       private BulkRequestBuilder bulk;
       private S3RiverFeedDefinition feedDefinition;
       
-      final String LAST_SCAN_TIME_FIELD = "_lastScanTime";
-      final String INITIAL_SCAN_BOOKMARK_FIELD = "_initialScanBookmark";
-      final String INITIAL_SCAN_FINISHED_FIELD = "_initialScanFinished";
       final int INITIAL_SCAN_SLEEP_INTERVAL = 2*60*1000;  
+      final int INDEXED_IDS_PAGE_SIZE = 1000;
+      final int MAX_RESEND_ATTEMPTS = 5;
+      final int EVENT_BATCH_SIZE = 10;
+
+      /** Keys (as listed) of the files whose indexation failed and could not be journaled. */
+      private final Set<String> unjournaledFailures = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
       public S3Scanner(S3RiverFeedDefinition feedDefinition){
          this.feedDefinition = feedDefinition;
@@ -367,11 +671,18 @@ public class S3River extends AbstractRiverComponent implements River{
             }
             
             try{
-               if (isStarted()) {
+               boolean started = isStarted();
+               if (started && eventSource != null && !isReconciliationDue()){
+                  // Changes are notified, receiving events waits for them to come. Back off on failure.
+                  sleepInterval = (int)feedDefinition.getEventWait();
+                  consumeEvents();
+                  sleepInterval = 0;
+               } else if (started) {
                   // Scan folder starting from last changes id, then record the new one.
                   // SO UGLY. I AM SORRY.
-                  boolean initialScanFinished = !feedDefinition.truncateInitialScan() || getBooleanFromRiver(INITIAL_SCAN_FINISHED_FIELD);
-                  String initialScanBookmark = getStringFromRiver(INITIAL_SCAN_BOOKMARK_FIELD);
+                  riverState.load();
+                  boolean initialScanFinished = !feedDefinition.truncateInitialScan() || riverState.isInitialScanFinished();
+                  String initialScanBookmark = riverState.getInitialScanBookmark();
                   
                   logger.debug("{}: INIT SCAN FINISHED: {} BOOKMARK: {}", riverName().name(), initialScanFinished, initialScanBookmark);
 
@@ -381,17 +692,22 @@ public class S3River extends AbstractRiverComponent implements River{
                      initialScanBookmark = "";
                   }
 
-                  Long lastScanTime = getLongFromRiver(LAST_SCAN_TIME_FIELD);
+                  Long lastScanTime = riverState.getLastScanTime();
                   S3ObjectSummaries summaries = scan(lastScanTime, !initialScanFinished, initialScanBookmark, trackS3Deletions());
-                  updateRiverLong(LAST_SCAN_TIME_FIELD, summaries.getLastScanTime());
 
+                  // Record scan time and bookmark together in one checkpoint.
                   if (summaries.getScanTruncated()) {
                      // still have more initial scanning to do
-                     forceInitialScan(summaries.getLastKey());
+                     logger.info("{}: saving new bookmark of initial scan: {}", riverName().name(), summaries.getLastKey());
+                     riverState.checkpoint(summaries.getLastScanTime(), summaries.getLastKey(), false);
                      sleepInterval = INITIAL_SCAN_SLEEP_INTERVAL;
                   } else {
                      logger.debug("{}: finished with initial scan", riverName().name());
-                     finishInitialScan();
+                     riverState.checkpoint(summaries.getLastScanTime(), null, true);
+                     if (eventSource != null){
+                        // Listing is only a reconciliation, go on with events.
+                        sleepInterval = 0;
+                     }
                   }
                } else {
                   logger.info("Amazon S3 River is disabled for {}", riverName().name());
@@ -404,6 +720,9 @@ public class S3River extends AbstractRiverComponent implements River{
                // 
             }
             
+            if (sleepInterval <= 0){
+               continue;
+            }
             try {
                logger.info("{}: sleeping for {} ms", riverName().name(), sleepInterval);
                Thread.sleep(sleepInterval);
@@ -412,32 +731,106 @@ public class S3River extends AbstractRiverComponent implements River{
          }
       }
 
-      public void forceInitialScan(String lastKey) throws Exception {
-         logger.info("{}: saving new bookmark of initial scan: {}", riverName().name(), lastKey);
-         updateRiverString(INITIAL_SCAN_BOOKMARK_FIELD, lastKey);
-         updateRiverBoolean(INITIAL_SCAN_FINISHED_FIELD, false);         
+      public boolean trackS3Deletions() {
+         return this.feedDefinition.trackS3Deletions();
       }
 
-      public boolean initialScanFinished() throws Exception {
-         return getBooleanFromRiver(INITIAL_SCAN_FINISHED_FIELD);
+      /** Tell if a full listing is needed: initial scan is not over or last listing is too old. */
+      private boolean isReconciliationDue(){
+         riverState.load();
+         Long lastScanTime = riverState.getLastScanTime();
+         boolean initialScanFinished = !feedDefinition.truncateInitialScan() || riverState.isInitialScanFinished();
+         return lastScanTime == null || !initialScanFinished
+               || System.currentTimeMillis() - lastScanTime >= feedDefinition.getReconcileRate();
       }
 
-      public String initialScanBookmark() throws Exception {
-         return getStringFromRiver(INITIAL_SCAN_BOOKMARK_FIELD);
-      }
+      /**
+       * Receive a batch of S3 events and push each of them directly through the indexing or deletion
+       * path. Messages are acknowledged once their documents went through the whole pipeline, failures
+       * being then held by the retry journal. Without journal, messages of failed documents are left
+       * to the queue for being received again.
+       */
+      private void consumeEvents() throws Exception{
+         replayFailedActions();
+         List<S3EventMessage> messages = eventSource.receive(EVENT_BATCH_SIZE, feedDefinition.getEventWait());
+         if (messages.isEmpty()){
+            return;
+         }
+         unjournaledFailures.clear();
 
-      public void finishInitialScan() throws Exception {
-         updateRiverString(INITIAL_SCAN_BOOKMARK_FIELD, null);
-         updateRiverBoolean(INITIAL_SCAN_FINISHED_FIELD, true);    
+         // Only the last event of each key matters.
+         Map<String, S3Event> latestEvents = new LinkedHashMap<String, S3Event>();
+         Map<S3EventMessage, List<S3Event>> messageEvents = new HashMap<S3EventMessage, List<S3Event>>();
+         String pathPrefix = feedDefinition.getPathPrefix() == null ? "" : feedDefinition.getPathPrefix();
+         for (S3EventMessage message : messages){
+            List<S3Event> events;
+            try {
+               events = message.getEvents();
+            } catch (IOException ioe){
+               logger.warn("{}: ignoring unreadable event message {}", riverName().name(), message.getBody());
+               continue;
+            }
+            messageEvents.put(message, events);
+            for (S3Event event : events){
+               if (!feedDefinition.getBucket().equals(event.getBucket())
+                     || !s3.decodeKey(event.getKey()).startsWith(pathPrefix)){
+                  continue;
+               }
+               S3Event previous = latestEvents.get(event.getKey());
+               if (previous == null || event.isAfter(previous)){
+                  latestEvents.put(event.getKey(), event);
+               }
+            }
+         }
+
+         List<S3IndexingTask> tasks = new ArrayList<S3IndexingTask>();
+         int deleted = 0;
+         for (S3Event event : latestEvents.values()){
+            if (event.getType() == S3Event.Type.CREATED){
+               if (S3RiverUtil.isIndexable(event.getKey(), feedDefinition.getIncludes(), feedDefinition.getExcludes())){
+                  tasks.add(newIndexingTask(event.toSummary()));
+               }
+            } else if (trackS3Deletions()){
+               String fileId = buildIndexIdFromS3Key(event.getKey());
+               esDelete(indexName, typeName, fileId, new S3RetryJournal.Origin(null, 0));
+               if (feedDefinition.isExtractAttachments()){
+                  esDeleteAttachments(fileId);
+               }
+               deleted++;
+            }
+         }
+         if (feedDefinition.isEtagCheck() && !feedDefinition.isJsonSupport()){
+            tasks = filterUnchangedFiles(tasks);
+         }
+         for (S3IndexingTask task : tasks){
+            indexingPipeline.index(task);
+         }
+         indexingPipeline.awaitCompletion();
+         resendRejectedActions();
+         logger.info("{}: {} events received, {} files indexed and {} deleted", riverName().name(),
+               latestEvents.size(), tasks.size(), deleted);
+
+         for (S3EventMessage message : messages){
+            if (!hasUnjournaledFailure(messageEvents.get(message))){
+               eventSource.acknowledge(message);
+            }
+         }
       }
 
-      public boolean trackS3Deletions() {
-         return this.feedDefinition.trackS3Deletions();
+      /** Tell if one of the files an event message is about failed without being journaled. */
+      private boolean hasUnjournaledFailure(List<S3Event> events){
+         if (events != null){
+            for (S3Event event : events){
+               if (unjournaledFailures.contains(event.getKey())){
+                  return true;
+               }
+            }
+         }
+         return false;
       }
       
       private boolean isStarted(){
-         // Refresh index before querying it.
-         client.admin().indices().prepareRefresh("_river").execute().actionGet();
+         // Realtime get, no need to refresh index before querying it.
          GetResponse isStartedGetResponse = client.prepareGet("_river", riverName().name(), "_s3status").execute().actionGet();
          try{
             if (!isStartedGetResponse.isExists()){
@@ -460,256 +853,804 @@ public class S3River extends AbstractRiverComponent implements River{
          return true;
       }
       
-      @SuppressWarnings("unchecked")
-      private Object getObjectFromRiver(String field){
-         Object result = null;
-         try {
-            // Do something.
-            client.admin().indices().prepareRefresh("_river").execute().actionGet();
-            GetResponse getResponse = client.prepareGet("_river", riverName().name(), field).execute().actionGet();
-            if (getResponse.isExists()) {
-               Map<String, Object> fsState = (Map<String, Object>) getResponse.getSourceAsMap().get("amazon-s3");
-               result = fsState.get(field);
-            } else {
-               // This is first call, just log in debug mode.
-               logger.debug("{} doesn't exist", field);
+      /** Scan the Amazon S3 bucket for last changes. */
+      private S3ObjectSummaries scan(Long lastScanTime, boolean initialScan, String initialScanBookmark,
+            final boolean trackS3Deletions) throws Exception{
+         if (logger.isDebugEnabled()){
+            logger.debug("{}: scanning bucket {} for new items since {}", riverName().name(), feedDefinition.getBucket(), lastScanTime);
+         }
+
+         // Failed actions of previous scans go first.
+         replayFailedActions();
+
+         // Index ids corresponding to S3 keys, needed later for extracting deleted files.
+         // This is pretty hard on memory if you have a directory with millions of files, so
+         // if you don't need that, I allow you to disable the syncing by setting the trackS3Deletions
+         // flag to false (disables deletion syncs both ways). Only the raw SHA-256 digests of keys
+         // are kept, into a compact hash set where each indexed id is checked in constant time.
+         final S3KeyDigestSet summariesIds = new S3KeyDigestSet();
+
+         // Documents indexed with ids of previous scheme are removed once, from a full listing.
+         // Json documents are indexed by key, their ids never changed.
+         if (riverState.isIdMigrationNeeded() && feedDefinition.isJsonSupport()){
+            riverState.idsMigrated();
+         }
+         final boolean migrateIds = !initialScan && riverState.isIdMigrationNeeded();
+         final S3KeyDigestSet staleIds = new S3KeyDigestSet(migrateIds ? 1024 : 0);
+
+         // Changes are indexed page by page while the bucket is listed.
+         S3ObjectSummaryListener listener = new S3ObjectSummaryListener(){
+            @Override
+            public void onPickedSummaries(List<S3ObjectSummary> pickedSummaries) throws Exception{
+               // Browse change and checks if its indexable before starting.
+               List<S3IndexingTask> tasks = new ArrayList<S3IndexingTask>(pickedSummaries.size());
+               for (S3ObjectSummary summary : pickedSummaries){
+                  if (S3RiverUtil.isIndexable(summary.getKey(), feedDefinition.getIncludes(), feedDefinition.getExcludes())){
+                     tasks.add(newIndexingTask(summary));
+                  }
+               }
+               if (feedDefinition.isEtagCheck() && !feedDefinition.isJsonSupport()){
+                  tasks = filterUnchangedFiles(tasks);
+               }
+               for (S3IndexingTask task : tasks){
+                  indexingPipeline.index(task);
+               }
             }
-         } catch (Exception e) {
-            logger.warn("failed to get {}, throttling....", field, e);
+
+            @Override
+            public void onListedKeys(List<String> keys) throws Exception{
+               for (String key : keys){
+                  byte[] digest = S3RiverUtil.digestEncodedS3Key(key);
+                  if (trackS3Deletions){
+                     summariesIds.add(digest);
+                  }
+                  if (migrateIds){
+                     // Keys having nothing to encode kept their id, others are indexed again under new one.
+                     byte[] legacyDigest = S3RiverUtil.digestS3Key(key);
+                     if (!Arrays.equals(digest, legacyDigest)){
+                        staleIds.add(legacyDigest);
+                        reindexUnderNewId(key);
+                     }
+                  }
+               }
+            }
+         };
+
+         // Initial scan and reconciliations read inventory report when there's one, rather than listing.
+         // Previous ids are digests of listed keys, so they are only migrated from a listing.
+         S3ObjectSummaries summaries = null;
+         if (s3.hasInventory() && (initialScan || eventSource != null) && !migrateIds){
+            summaries = s3.getObjectSummariesFromInventory(riverName().name(), lastScanTime, initialScan,
+                  trackS3Deletions, listener);
+         }
+         boolean fromInventory = summaries != null;
+         if (!fromInventory){
+            summaries = s3.getObjectSummaries(riverName().name(), lastScanTime, initialScan, initialScanBookmark,
+                  trackS3Deletions || migrateIds, listener);
          }
 
-         if (logger.isDebugEnabled()){
-            logger.debug("{}: {}", field, result);
+         // Wait for picked files to go through the whole indexing pipeline.
+         indexingPipeline.awaitCompletion();
+         resendRejectedActions();
+         if (summaries.getPickedCount() > 0){
+            logger.info("{}: bulk stats: {}, {}", riverName().name(), bulkStats, bulkController);
+         }
+         if (!feedDefinition.isJsonSupport() && summaries.getPickedCount() > 0){
+            parserEngine.logStats(riverName().name());
+            if (parseCache != null){
+               logger.info("{}: parse cache has {} hits and {} misses, {} bytes on disk", riverName().name(),
+                     parseCache.getHits(), parseCache.getMisses(), parseCache.getTotalBytes());
+            }
          }
-         return result;
+
+         // Now, because we do not get changes but only present files, we should
+         // compare previously indexed files with latest to extract deleted ones...
+         if (summaries.trackS3Deletions() && fromInventory && feedDefinition.isJsonSupport()) {
+            // Json documents have no modification date telling if their file was created after inventory was taken.
+            logger.info("{}: deletions are not reconciled from inventory report for json documents", riverName().name());
+         } else if (trackS3Deletions && summaries.trackS3Deletions()) {
+            // Files created after inventory was taken are not into it, they should not be considered deleted.
+            Long modifiedBefore = fromInventory ? summaries.getLastScanTime() : null;
+            S3IndexedFileIdIterator previousFileIds = new S3IndexedFileIdIterator(client, indexName, typeName,
+                  INDEXED_IDS_PAGE_SIZE, modifiedBefore);
+            try {
+               while (previousFileIds.hasNext()){
+                  String previousFileId = previousFileIds.next();
+                  if (!summariesIds.contains(S3RiverUtil.buildDigestFromIndexId(previousFileId))){
+                     esDelete(indexName, typeName, previousFileId, new S3RetryJournal.Origin(null, 0));
+                     if (feedDefinition.isExtractAttachments()){
+                        esDeleteAttachments(previousFileId);
+                     }
+                  }
+               }
+            } finally {
+               previousFileIds.close();
+            }
+         } else if (migrateIds && summaries.trackS3Deletions() && staleIds.size() > 0) {
+            deleteStaleIds(staleIds);
+         }
+         // Deletion sync above removes stale ids along with ids of deleted files.
+         if (migrateIds && summaries.trackS3Deletions()){
+            logger.info("{}: documents indexed with previous ids have been removed", riverName().name());
+            riverState.idsMigrated();
+         }
+
+         return summaries;
       }
 
-      @SuppressWarnings("unchecked")
-      private String getStringFromRiver(String field){
-         Object result = getObjectFromRiver(field);
-         if (result == null) {
-            return null;
-         } else {
-            return ((String) result);
+      /** Index again a file whose id has changed, unless it is not indexable or has been removed meanwhile. */
+      private void reindexUnderNewId(String key) throws Exception{
+         if (!S3RiverUtil.isIndexable(key, feedDefinition.getIncludes(), feedDefinition.getExcludes())){
+            return;
+         }
+         S3ObjectSummary summary = s3.getObjectSummary(key);
+         if (summary != null){
+            indexingPipeline.index(newIndexingTask(summary));
          }
       }
 
-      @SuppressWarnings("unchecked")
-      private boolean getBooleanFromRiver(String field){
-         Object result = getObjectFromRiver(field);
-         if (result == null) {
-            return false; // FIXME: hmm?
-         } else {
-            return ((boolean) result);
+      /**
+       * Remove documents indexed under the ids of previous scheme, that have been indexed again under their
+       * new id. Indexed ids are scrolled as for deletion sync, documents of deleted files are kept.
+       */
+      private void deleteStaleIds(S3KeyDigestSet staleIds) throws Exception{
+         logger.info("{}: removing documents indexed with previous ids of {} files", riverName().name(), staleIds.size());
+         S3IndexedFileIdIterator previousFileIds = new S3IndexedFileIdIterator(client, indexName, typeName,
+               INDEXED_IDS_PAGE_SIZE, null);
+         try {
+            while (previousFileIds.hasNext()){
+               String previousFileId = previousFileIds.next();
+               if (staleIds.contains(S3RiverUtil.buildDigestFromIndexId(previousFileId))){
+                  esDelete(indexName, typeName, previousFileId, new S3RetryJournal.Origin(null, 0));
+                  if (feedDefinition.isExtractAttachments()){
+                     esDeleteAttachments(previousFileId);
+                  }
+               }
+            }
+         } finally {
+            previousFileIds.close();
+         }
+      }
+      
+      /**
+       * Replay the failed actions whose backoff is over: documents are indexed again from their
+       * current S3 content, deletions are sent again.
+       */
+      private void replayFailedActions() throws Exception{
+         if (retryJournal == null){
+            return;
+         }
+         List<S3RetryJournal.Entry> entries = retryJournal.takeDue(System.currentTimeMillis());
+         if (!entries.isEmpty()){
+            logger.info("{}: replaying {} failed actions", riverName().name(), entries.size());
+         }
+         for (S3RetryJournal.Entry entry : entries){
+            if (entry.getAttempts() > feedDefinition.getRetryMaxAttempts()){
+               logger.warn("{}: giving up {} of {} after {} attempts", riverName().name(),
+                     entry.isDelete() ? "deletion" : "indexation", entry.isDelete() ? entry.getId() : entry.getKey(),
+                     entry.getAttempts());
+               retryJournal.ack(entry);
+            } else if (entry.isDelete()){
+               if (isModifiedSince(entry.getIndex(), entry.getType(), entry.getId(), entry.getFailedAt())){
+                  // File has been created again meanwhile, its document is alive.
+                  logger.debug("{}: not replaying deletion of {} indexed again since", riverName().name(), entry.getId());
+                  retryJournal.ack(entry);
+                  continue;
+               }
+               esDelete(entry.getIndex(), entry.getType(), entry.getId(), entry.toOrigin());
+            } else {
+               S3ObjectSummary summary = s3.getObjectSummary(entry.getKey());
+               if (summary == null){
+                  // File has been removed meanwhile, deletion sync will handle it.
+                  retryJournal.ack(entry);
+                  continue;
+               }
+               S3IndexingTask task = newIndexingTask(summary);
+               task.setReplayed(entry);
+               indexingPipeline.index(task);
+            }
          }
       }
 
-      @SuppressWarnings("unchecked")
-      private Long getLongFromRiver(String field){
-         Object result = getObjectFromRiver(field);
-         if (result != null) {
-            try{
-               return Long.parseLong(result.toString());
-            } catch (NumberFormatException nfe){
-               logger.warn("Last recorded {} is not a Long: {}", field, result.toString());
+      /** Tell if a document is indexed from a file modified after given time. */
+      private boolean isModifiedSince(String index, String type, String id, long time){
+         // Realtime get, no need to refresh index before querying it.
+         GetResponse response = client.prepareGet(index, type, id)
+               .setFetchSource(S3RiverUtil.DOC_FIELD_MODIFIED_DATE, null).execute().actionGet();
+         if (!response.isExists() || response.getSourceAsMap() == null){
+            return false;
+         }
+         Object modifiedDate = response.getSourceAsMap().get(S3RiverUtil.DOC_FIELD_MODIFIED_DATE);
+         return modifiedDate instanceof Number && ((Number)modifiedDate).longValue() > time;
+      }
+
+      /** Prepare indexing of an Amazon S3 file through the fetch, parse and bulk submission stages. */
+      private S3IndexingTask newIndexingTask(S3ObjectSummary summary) throws NoSuchAlgorithmException{
+         S3IndexingTask task = new S3IndexingTask(summary);
+         task.setKey(s3.getDecodedKey(summary));
+         // Build a unique id from S3 unique summary key.
+         task.setFileId(buildIndexIdFromS3Key(summary.getKey()));
+         return task;
+      }
+
+      /**
+       * Remove from tasks the files that are already indexed with same ETag and size as listed,
+       * so that their content is neither downloaded nor parsed again. Indexed ETags are retrieved
+       * with a single multi get per listing page.
+       */
+      private List<S3IndexingTask> filterUnchangedFiles(List<S3IndexingTask> tasks){
+         if (tasks.isEmpty()){
+            return tasks;
+         }
+         FetchSourceContext changeFields = new FetchSourceContext(
+               new String[]{S3RiverUtil.DOC_FIELD_ETAG, S3RiverUtil.DOC_FIELD_SIZE, S3RiverUtil.DOC_FIELD_ATTACHMENTS},
+               null);
+         MultiGetRequestBuilder request = client.prepareMultiGet();
+         for (S3IndexingTask task : tasks){
+            request.add(new MultiGetRequest.Item(indexName, typeName, task.getFileId()).fetchSourceContext(changeFields));
+         }
+         MultiGetResponse response = request.execute().actionGet();
+
+         List<S3IndexingTask> changedTasks = new ArrayList<S3IndexingTask>(tasks.size());
+         MultiGetItemResponse[] items = response.getResponses();
+         for (int i = 0; i < tasks.size(); i++){
+            S3IndexingTask task = tasks.get(i);
+            if (items[i].isFailed() || !items[i].getResponse().isExists()
+                  || !isSameContent(task.getSummary(), items[i].getResponse().getSourceAsMap())){
+               if (!items[i].isFailed()){
+                  task.setPreviousAttachments(attachmentsOf(items[i].getResponse()));
+               }
+               changedTasks.add(task);
+            } else if (logger.isDebugEnabled()){
+               logger.debug("'{}' is unchanged since last indexation, skipping it", task.getKey());
             }
          }
+         if (changedTasks.size() < tasks.size()){
+            logger.debug("{}: {} unchanged files skipped", riverName().name(), tasks.size() - changedTasks.size());
+         }
+         return changedTasks;
+      }
 
-         return null;
+      /** Tell if an indexed file source has the same ETag and size than listed summary. */
+      private boolean isSameContent(S3ObjectSummary summary, Map<String, Object> indexedSource){
+         if (indexedSource == null || summary.getETag() == null){
+            return false;
+         }
+         Object etag = indexedSource.get(S3RiverUtil.DOC_FIELD_ETAG);
+         Object size = indexedSource.get(S3RiverUtil.DOC_FIELD_SIZE);
+         return summary.getETag().equals(etag)
+               && size instanceof Number && ((Number)size).longValue() == summary.getSize();
       }
 
-      /** Scan the Amazon S3 bucket for last changes. */
-      private S3ObjectSummaries scan(Long lastScanTime, boolean initialScan, String initialScanBookmark, boolean trackS3Deletions) throws Exception{
+      /** Fetch stage: retrieve Amazon S3 file content. */
+      @Override
+      public boolean fetch(S3IndexingTask task) throws Exception{
+         S3ObjectSummary summary = task.getSummary();
          if (logger.isDebugEnabled()){
-            logger.debug("{}: scanning bucket {} for new items since {}", riverName().name(), feedDefinition.getBucket(), lastScanTime);
+            logger.debug("Trying to index '{}'", task.getKey());
          }
 
-         S3ObjectSummaries summaries = s3.getObjectSummaries(riverName().name(), lastScanTime, initialScan, initialScanBookmark, trackS3Deletions);
-                  
-         // Browse change and checks if its indexable before starting.
-         for (S3ObjectSummary summary : summaries.getPickedSummaries()){
-            if (S3RiverUtil.isIndexable(summary.getKey(), feedDefinition.getIncludes(), feedDefinition.getExcludes())){
-               indexFile(summary);
+         if (!feedDefinition.isJsonSupport() && parseRouter.isEnabled()){
+            routeContent(task);
+            if (task.getParsePolicy() == S3ParseRouter.Policy.SKIP){
+               // Content is not needed, only S3 attributes are indexed.
+               return true;
             }
          }
-         
-         // Now, because we do not get changes but only present files, we should 
-         // compare previously indexed files with latest to extract deleted ones...
-         // But before, we need to produce a list of index ids corresponding to S3 keys.
-         // This is pretty hard on memory if you have a directory with millions of files, so 
-         // if you don't need that, I allow you to disable the syncing by setting the trackS3Deletions
-         // flag to false (disables deletion syncs both ways)
-         if (summaries.trackS3Deletions()) {
-            List<String> previousFileIds = getAlreadyIndexFileIds();
-            List<String> summariesIds = new ArrayList<String>();
-            for (String key : summaries.getKeys()){
-               summariesIds.add(buildIndexIdFromS3Key(key));
-            }
-            for (String previousFileId : previousFileIds){
-               if (!summariesIds.contains(previousFileId)){
-                  esDelete(indexName, typeName, previousFileId);
-               }
+         if (feedDefinition.getMaxInputBytes() > 0 && summary.getSize() > feedDefinition.getMaxInputBytes()){
+            throw new IOException("size of " + summary.getSize() + " bytes is above max_input_bytes ("
+                  + feedDefinition.getMaxInputBytes() + ")");
+         }
+         if (feedDefinition.isJsonSupport()){
+            // Json is indexed as is, we need the whole content.
+            task.setContent(s3.getContent(summary));
+            return true;
+         }
+         // Content already parsed once does not need to be downloaded.
+         if (parseCache != null && summary.getETag() != null){
+            Metadata cachedMetadata = new Metadata();
+            String cachedContent = parseCache.get(summary.getETag(), summary.getSize(),
+                  maxExtractedChars(task), cachedMetadata);
+            if (cachedContent != null){
+               task.setParsedContent(cachedContent);
+               task.setParsedMetadata(cachedMetadata);
+               return true;
             }
          }
-
-         return summaries;
+         // Small enough contents are downloaded ahead while parse stage is busy.
+         if (prefetchBudget != null && summary.getSize() <= prefetchBudget.getLimit()){
+            task.setObjectContent(prefetch(summary));
+            return true;
+         }
+         // Otherwise content is downloaded here, into memory if small or else into a temporary file, so
+         // that no connection is held open by queued tasks and network errors fail the task here.
+         task.setObjectContent(s3.getSpooledContent(summary));
+         return true;
       }
-      
-      /** Retrieve the ids of files already present into index. */
-      private List<String> getAlreadyIndexFileIds(){
-         List<String> fileIds = new ArrayList<String>();
-         // TODO : Should be later optimized for only retrieving ids and getting
-         // over the 5000 hits limitation.
-         SearchResponse response = client
-               .prepareSearch(indexName)
-               .setSearchType(SearchType.QUERY_AND_FETCH)
-               .setTypes(typeName)
-               .setFrom(0)
-               .setSize(5000)
-               .execute().actionGet();
-         if (response.getHits() != null && response.getHits().getHits() != null){
-            for (SearchHit hit : response.getHits().getHits()){
-               fileIds.add(hit.getId());
+
+      /**
+       * Download the whole content of an Amazon S3 file into memory, once its size can be reserved from
+       * prefetch budget. Budget is given back when returned content is closed by parse stage.
+       */
+      private S3ObjectContent prefetch(S3ObjectSummary summary) throws Exception{
+         final long reserved = prefetchBudget.acquire(summary.getSize());
+         boolean prefetched = false;
+         try {
+            // Content is held into pooled chunks, parser reads them directly.
+            S3ObjectContent content = s3.getBufferedContent(summary);
+            S3ObjectContent result = new S3ObjectContent(content.getMetadata(), new FilterInputStream(content.getInputStream()){
+               private boolean released = false;
+
+               @Override
+               public void close() throws IOException{
+                  try {
+                     super.close();
+                  } finally {
+                     if (!released){
+                        released = true;
+                        prefetchBudget.release(reserved);
+                     }
+                  }
+               }
+            });
+            prefetched = true;
+            return result;
+         } finally {
+            if (!prefetched){
+               prefetchBudget.release(reserved);
             }
          }
-         return fileIds;
       }
-      
-      /** Index an Amazon S3 file by retrieving its content and building the suitable Json content. */
-      private String indexFile(S3ObjectSummary summary){
-         String key = s3.getDecodedKey(summary);
 
+      /**
+       * Sniff the media type of Amazon S3 file for choosing its parse policy. Type is guessed
+       * from key extension first; if it does not tell, from Content-Type and leading bytes.
+       */
+      private void routeContent(S3IndexingTask task) throws IOException{
+         MediaType type = parseRouter.detect(task.getKey(), null, null);
+         if (MediaType.OCTET_STREAM.equals(type) && task.getSummary().getSize() > 0){
+            S3ObjectContent head = s3.getObjectContent(task.getSummary(), S3ParseRouter.SNIFF_LENGTH);
+            try {
+               type = parseRouter.detect(task.getKey(), head.getMetadata().getContentType(), head.getInputStream());
+            } finally {
+               head.close();
+            }
+         }
+         task.setMediaType(type);
+         task.setParsePolicy(parseRouter.policyFor(type));
          if (logger.isDebugEnabled()){
-            logger.debug("Trying to index '{}'", key);
+            logger.debug("'{}' detected as {}, parse policy is {}", task.getKey(), type, task.getParsePolicy());
          }
-         
-         try{
-            // Build a unique id from S3 unique summary key.
-            String fileId = buildIndexIdFromS3Key(summary.getKey());
-            // logger.info("SHA-256 key for '{}'' is {}", summary.getKey(), fileId);
+      }
+
+      /** Only metadata are extracted from documents having metadata policy. */
+      private int maxExtractedChars(S3IndexingTask task){
+         return task.getParsePolicy() == S3ParseRouter.Policy.METADATA ? 0 : feedDefinition.getMaxExtractedChars();
+      }
+
+      /** Parse stage: build the suitable Json content for Amazon S3 file. */
+      @Override
+      public boolean parse(S3IndexingTask task) throws Exception{
+         if (feedDefinition.isJsonSupport()){
+            // Content is already Json, nothing to build.
+            return true;
+         }
+         if (task.getAttachment() != null){
+            return parseAttachment(task);
+         }
+         S3ObjectSummary summary = task.getSummary();
+         String key = task.getKey();
 
-            if (feedDefinition.isJsonSupport()){
-               esIndex(indexName, typeName, summary.getKey(), s3.getContent(summary));
+         Metadata fileMetadata = new Metadata();
+         String parsedContent = "";
+         String etag;
+         long size;
+         Map<String, Object> userMetadata = null;
+         Integer attachmentCount = null;
+
+         if (task.getParsePolicy() == S3ParseRouter.Policy.SKIP || task.getParsedContent() != null){
+            if (task.getParsedContent() != null){
+               // Found into parse cache, only user metadata are missing.
+               fileMetadata = task.getParsedMetadata();
+               parsedContent = task.getParsedContent();
             } else {
-               byte[] fileContent = s3.getContent(summary);
+               fileMetadata.set(Metadata.CONTENT_TYPE, task.getMediaType().toString());
+            }
+            etag = summary.getETag();
+            size = summary.getSize();
+            if (feedDefinition.isUserMetadata()){
+               userMetadata = s3.getUserMetadata(summary);
+            }
+         } else {
+            S3ObjectContent content = task.getObjectContent();
+            task.setObjectContent(null);
+            etag = content.getMetadata().getETag();
+            size = content.getContentLength();
+            if (feedDefinition.isUserMetadata()){
+               // User metadata came along with content, no need for another request.
+               userMetadata = content.getUserMetadata();
+            }
+            S3AttachmentExtractor extractor = null;
+            ParseContext context = null;
+            if (feedDefinition.isExtractAttachments() && task.getParsePolicy() == S3ParseRouter.Policy.FULL){
+               context = new ParseContext();
+               extractor = new S3AttachmentExtractor(context);
+            }
+            String parsed;
+            try {
+               parsed = parseContent(key, content.getInputStream(), fileMetadata, maxExtractedChars(task), context);
+            } catch (Exception e){
+               if (extractor != null){
+                  extractor.discard();
+               }
+               throw e;
+            }
+            if (parsed != null && parseCache != null && etag != null){
+               parseCache.put(etag, size, maxExtractedChars(task), parsed, fileMetadata);
+            }
+            parsedContent = parsed == null ? "" : parsed;
+            if (extractor != null){
+               List<S3AttachmentExtractor.Attachment> attachments = extractor.takeAttachments();
+               indexAttachments(task, attachments);
+               // Next indexation only deletes attachments of this version if it has some.
+               attachmentCount = attachments.size();
+            }
+         }
 
-               if (fileContent != null) {
-                  // Parse content using Tika directly.
-                  Metadata fileMetadata = new Metadata();
-                  String parsedContent = "";
+         // convert fileMetadata to a map for jsonBuilder object
+         Map<String, Object> fileMetadataMap = new HashMap<String, Object>();
+         String[] metadata_keys = fileMetadata.names();
+         for (String k : metadata_keys) {
+            if (fileMetadata.isMultiValued(k)) {
+               fileMetadataMap.put(k,fileMetadata.getValues(k));
+            } else {
+               fileMetadataMap.put(k,fileMetadata.get(k));
+            }
+         }
 
-                  try {
-                    parsedContent = TikaHolder.tika().parseToString(
-                        new BytesStreamInput(fileContent, false), fileMetadata);
-                  } catch (Exception e) {
-                    logger.warn("Tika error " + summary.getKey() + " : " + e.getMessage());
-                  }
+         XContentBuilder source = jsonBuilder()
+               .startObject()
+                  .field(S3RiverUtil.DOC_FIELD_TITLE, key.substring(key.lastIndexOf('/') + 1))
+                  .field(S3RiverUtil.DOC_FIELD_MODIFIED_DATE, summary.getLastModified().getTime())
+                  .field(S3RiverUtil.DOC_FIELD_SOURCE_URL, s3.getDownloadUrl(summary, feedDefinition))
+                  .field(S3RiverUtil.DOC_FIELD_ETAG, etag)
+                  .field(S3RiverUtil.DOC_FIELD_SIZE, size);
+         if (userMetadata != null){
+            source.field(S3RiverUtil.DOC_FIELD_METADATA, userMetadata);
+         }
+         if (attachmentCount != null){
+            source.field(S3RiverUtil.DOC_FIELD_ATTACHMENTS, attachmentCount);
+         }
+         task.setSource(source
+                  .startObject("file")
+                     .field("_name", summary.getKey().substring(key.lastIndexOf('/') + 1))
+                     .field("title", summary.getKey().substring(key.lastIndexOf('/') + 1))
+                     .field("metadata", fileMetadataMap)
+                     .field("file", parsedContent)
+                  .endObject()
+               .endObject());
+         return true;
+      }
 
-                  // convert fileMetadata to a map for jsonBuilder object
-                  Map<String, Object> fileMetadataMap = new HashMap<String, Object>();
-                  String[] metadata_keys = fileMetadata.names();
-                  for (String k : metadata_keys) {
-                     if (fileMetadata.isMultiValued(k)) {
-                        fileMetadataMap.put(k,fileMetadata.getValues(k));
-                     } else {
-                        fileMetadataMap.put(k,fileMetadata.get(k));
-                     }
-                  }
+      /**
+       * Parse content using Tika directly.
+       * @return The extracted text, or null if parse failed
+       * @throws IOException if content itself cannot be read, file is then considered as failed
+       */
+      private String parseContent(String name, InputStream stream, Metadata fileMetadata, int maxChars, ParseContext context)
+            throws Exception{
+         SourceInputStream source = new SourceInputStream(stream);
+         try {
+           // Content is already downloaded, into memory or into a temporary file. A parser needing
+           // random access may still copy it into a file of its own.
+           return parserEngine.parseToString(source, fileMetadata, maxChars, feedDefinition.getParseTimeout(), context);
+         } catch (TikaParserEngine.ParseTimeoutException pte) {
+           // Parse has been abandoned, consider this file as failed.
+           throw pte;
+         } catch (TikaParserEngine.ParseRejectedException pre) {
+           // Parse has not been tried, consider this file as failed.
+           throw pre;
+         } catch (Exception e) {
+           if (source.getFailure() != null){
+              // Content has not been read entirely, indexing it would record a partial text.
+              throw new IOException("Error while reading content of " + name, source.getFailure());
+           }
+           logger.warn("Tika error " + name + " : " + e.getMessage());
+           return null;
+         } finally {
+           stream.close();
+         }
+      }
 
-                  esIndex(indexName, typeName, fileId,
-                        jsonBuilder()
-                           .startObject()
-                              .field(S3RiverUtil.DOC_FIELD_TITLE, key.substring(key.lastIndexOf('/') + 1))
-                              .field(S3RiverUtil.DOC_FIELD_MODIFIED_DATE, summary.getLastModified().getTime())
-                              .field(S3RiverUtil.DOC_FIELD_SOURCE_URL, s3.getDownloadUrl(summary, feedDefinition))
-                              .field(S3RiverUtil.DOC_FIELD_METADATA,   s3.getS3UserMetadata(key))
-                              .startObject("file")
-                                 .field("_name", summary.getKey().substring(key.lastIndexOf('/') + 1))
-                                 .field("title", summary.getKey().substring(key.lastIndexOf('/') + 1))
-                                 .field("metadata", fileMetadataMap)
-                                 .field("file", parsedContent)
-                              .endObject()
-                           .endObject());
-
-                  logger.debug("S3 River: indexed '{}'", key);
-
-                  return fileId;
+      /**
+       * Send attachments extracted from a document to parse stage, each one becoming a document
+       * of its own linked to the id of top level document.
+       */
+      private void indexAttachments(S3IndexingTask container, List<S3AttachmentExtractor.Attachment> attachments)
+            throws Exception{
+         String parentId = container.getParentId() != null ? container.getParentId() : container.getFileId();
+         // Attachments of a previous version of container are replaced, as their number may have changed.
+         if (container.getParentId() == null && hadAttachments(container)){
+            try {
+               esDeleteAttachments(parentId);
+            } catch (Exception e){
+               for (S3AttachmentExtractor.Attachment attachment : attachments){
+                  attachment.delete();
                }
+               throw e;
             }
-         } catch (Exception e) {
-            logger.warn(riverName().name() + ": can not index " + key + " : " + e.getMessage());
          }
-         return null;
+         for (int i = 0; i < attachments.size(); i++){
+            S3IndexingTask task = new S3IndexingTask(container.getSummary());
+            task.setKey(container.getKey());
+            task.setFileId(container.getFileId() + "-" + (i + 1));
+            task.setParentId(parentId);
+            task.setReplayed(container.getReplayed());
+            task.setAttachment(attachments.get(i));
+            try {
+               indexingPipeline.parseEmbedded(task);
+            } catch (EsRejectedExecutionException ree){
+               for (S3AttachmentExtractor.Attachment attachment : attachments.subList(i, attachments.size())){
+                  attachment.delete();
+               }
+               throw ree;
+            }
+         }
+         if (!attachments.isEmpty()){
+            logger.debug("{} attachments extracted from '{}'", attachments.size(), container.getKey());
+         }
       }
-      
-      /** Build a unique id from S3 unique summary key. */
-      private String buildIndexIdFromS3Key(String key) throws NoSuchAlgorithmException,UnsupportedEncodingException {
-         //return key.replace('/', '-').replace(' ', '-');
 
-         // Let's just build a SHA-1 key instead
-         MessageDigest md = MessageDigest.getInstance("SHA-256");
-         return Base64.encodeBase64String(md.digest(key.getBytes())).replace('/', '_').replace('+', '-').replace("=", "").replace("\n", "").replace("\r", "");
+      /**
+       * Tell if indexed version of a container may have attachments. Their count is recorded on
+       * container document, so that the costly deletion by query is only run when needed.
+       */
+      private boolean hadAttachments(S3IndexingTask container){
+         int previous = container.getPreviousAttachments();
+         if (previous == S3IndexingTask.UNKNOWN_ATTACHMENTS){
+            // Realtime get, no need to refresh index before querying it.
+            previous = attachmentsOf(client.prepareGet(indexName, typeName, container.getFileId())
+                  .setFetchSource(S3RiverUtil.DOC_FIELD_ATTACHMENTS, null).execute().actionGet());
+         }
+         // Documents indexed before counts were recorded may have attachments.
+         return previous != 0;
       }
-      
-      /** Update river last changes id value.*/
-      private void updateRiverObject(String field, Object value) throws Exception {
-         if (logger.isDebugEnabled()){
-            logger.debug("{} updating {}: {}", riverName().name(), field, value);
+
+      /** @return The attachment count recorded on an indexed document, 0 if it does not exist */
+      private int attachmentsOf(GetResponse response){
+         if (!response.isExists()){
+            return 0;
+         }
+         Object count = response.getSourceAsMap() == null ? null
+               : response.getSourceAsMap().get(S3RiverUtil.DOC_FIELD_ATTACHMENTS);
+         return count instanceof Number ? ((Number)count).intValue() : S3IndexingTask.UNKNOWN_ATTACHMENTS;
+      }
+
+      /** Parse stage for an attachment: build its Json content, extracting its own attachments. */
+      private boolean parseAttachment(S3IndexingTask task) throws Exception{
+         S3AttachmentExtractor.Attachment attachment = task.getAttachment();
+         String name = attachment.getName();
+         Metadata fileMetadata = new Metadata();
+         fileMetadata.set(Metadata.RESOURCE_NAME_KEY, name);
+         if (attachment.getMetadata().get(Metadata.CONTENT_TYPE) != null){
+            fileMetadata.set(Metadata.CONTENT_TYPE, attachment.getMetadata().get(Metadata.CONTENT_TYPE));
+         }
+         long size = attachment.getFile().length();
+
+         ParseContext context = new ParseContext();
+         S3AttachmentExtractor extractor = new S3AttachmentExtractor(context);
+         String parsedContent;
+         try {
+            parsedContent = parseContent(task.getKey() + "/" + name, new FileInputStream(attachment.getFile()),
+                  fileMetadata, feedDefinition.getMaxExtractedChars(), context);
+         } catch (Exception e){
+            extractor.discard();
+            throw e;
+         } finally {
+            attachment.delete();
          }
+         indexAttachments(task, extractor.takeAttachments());
 
-         // We store the lastupdate date and some stats
-         XContentBuilder xb = jsonBuilder()
-            .startObject()
-               .startObject("amazon-s3")
-                  .field("feedname", feedDefinition.getFeedname())
-                  .field(field, value)
-               .endObject()
-            .endObject();
-         esIndex("_river", riverName.name(), field, xb);
-         bulkProcessor.flush();  // force it to be changed
+         Map<String, Object> fileMetadataMap = new HashMap<String, Object>();
+         for (String k : fileMetadata.names()) {
+            if (fileMetadata.isMultiValued(k)) {
+               fileMetadataMap.put(k,fileMetadata.getValues(k));
+            } else {
+               fileMetadataMap.put(k,fileMetadata.get(k));
+            }
+         }
+         task.setSource(jsonBuilder()
+               .startObject()
+                  .field(S3RiverUtil.DOC_FIELD_TITLE, name)
+                  .field(S3RiverUtil.DOC_FIELD_MODIFIED_DATE, task.getSummary().getLastModified().getTime())
+                  .field(S3RiverUtil.DOC_FIELD_SOURCE_URL, s3.getDownloadUrl(task.getSummary(), feedDefinition))
+                  .field(S3RiverUtil.DOC_FIELD_SIZE, size)
+                  .field(S3RiverUtil.DOC_FIELD_PARENT_ID, task.getParentId())
+                  .startObject("file")
+                     .field("_name", name)
+                     .field("title", name)
+                     .field("metadata", fileMetadataMap)
+                     .field("file", parsedContent == null ? "" : parsedContent)
+                  .endObject()
+               .endObject());
+         return true;
       }
 
-      // just in case I need to modify the values passed into updateRiverObject
-      private void updateRiverLong(String field, Long value) throws Exception{
-         updateRiverObject(field, value);
+      /** Bulk submission stage: add Json content of Amazon S3 file to bulk. */
+      @Override
+      public void submit(S3IndexingTask task) throws Exception{
+         // Slow down the whole pipeline while cluster rejects bulks.
+         bulkController.throttle();
+         resendRetries();
+         // A failed attachment is recovered by indexing its container again.
+         S3RetryJournal.Origin origin = originOf(task);
+         if (feedDefinition.isJsonSupport()){
+            esIndex(indexName, typeName, task.getSummary().getKey(), task.getContent(), origin);
+         } else if (task.getAttachment() != null){
+            esIndex(indexName, S3RiverUtil.INDEX_TYPE_ATTACHMENT, task.getFileId(), task.getSource(), origin);
+         } else {
+            esIndex(indexName, typeName, task.getFileId(), task.getSource(), origin);
+         }
+         if (bulkController.added()){
+            bulkProcessor.flush();
+         }
+         logger.debug("S3 River: indexed '{}'", task.getKey());
       }
 
-      private void updateRiverString(String field, String value) throws Exception{
-         updateRiverObject(field, value);
+      /** Add the actions rejected by cluster to bulk again. */
+      private void resendRetries(){
+         for (S3BulkController.Retry retry : bulkController.takeRetries()){
+            bulkProcessor.add(retry.getRequest(), retry.getPayload());
+         }
       }
 
-      private void updateRiverBoolean(String field, boolean value) throws Exception{
-         updateRiverObject(field, value);
+      /**
+       * Once a scan has been submitted, send again the actions rejected by cluster until they are
+       * accepted. Actions still rejected after a few attempts are recorded into retry journal.
+       */
+      private void resendRejectedActions() throws InterruptedException{
+         for (int attempt = 0; attempt < MAX_RESEND_ATTEMPTS && !closed; attempt++){
+            bulkProcessor.flush();
+            while (bulkStats.getInFlight() > 0 && !closed){
+               Thread.sleep(100);
+            }
+            if (!bulkController.hasRetries()){
+               return;
+            }
+            bulkController.throttle();
+            resendRetries();
+         }
+         if (bulkController.hasRetries()){
+            logger.warn("{}: some actions are still rejected by cluster, they will be sent again later on",
+                  riverName().name());
+            for (S3BulkController.Retry retry : bulkController.takeRetries()){
+               journalFailedAction(retry.getRequest(), retry.getPayload());
+            }
+         }
       }
 
+      @Override
+      public void failed(S3IndexingTask task, Throwable t){
+         if (task.getAttachment() != null){
+            task.getAttachment().delete();
+         }
+         if (task.getObjectContent() != null){
+            try {
+               task.getObjectContent().close();
+            } catch (IOException ioe){
+               logger.debug("Error while closing content of {}", ioe, task.getSummary().getKey());
+            }
+         }
+         String key = task.getKey() != null ? task.getKey() : task.getSummary().getKey();
+         logger.warn(riverName().name() + ": can not index " + key + " : " + t.getMessage());
+
+         // File is indexed again later on, attachments being extracted again with their container.
+         if (task.getParentId() == null){
+            if (retryJournal != null && task.getFileId() != null){
+               retryJournal.append(originOf(task).failed(false, indexName, typeName, task.getFileId(),
+                     System.currentTimeMillis()));
+            } else if (eventSource != null){
+               unjournaledFailures.add(task.getSummary().getKey());
+            }
+         }
+      }
+      
+      /** @return The origin of bulk actions of task, telling which journal entry it replays */
+      private S3RetryJournal.Origin originOf(S3IndexingTask task){
+         return task.getReplayed() != null ? task.getReplayed().toOrigin()
+               : new S3RetryJournal.Origin(task.getSummary().getKey(), 0);
+      }
+
+      /** Build a unique id from S3 unique summary key, URL encoded. */
+      private String buildIndexIdFromS3Key(String key) throws NoSuchAlgorithmException {
+         return S3RiverUtil.buildIndexIdFromDigest(S3RiverUtil.digestEncodedS3Key(key));
+      }
+      
       /** Add to bulk an IndexRequest. */
-      private void esIndex(String index, String type, String id, XContentBuilder xb) throws Exception{
+      private void esIndex(String index, String type, String id, XContentBuilder xb, S3RetryJournal.Origin origin)
+            throws Exception{
          if (logger.isDebugEnabled()){
             logger.debug("Indexing in ES " + index + ", " + type + ", " + id);
          }
          if (logger.isTraceEnabled()){
             logger.trace("Json indexed : {}", xb.string());
          }
-         bulkProcessor.add(client.prepareIndex(index, type, id).setSource(xb).request());
+         bulkProcessor.add(client.prepareIndex(index, type, id).setSource(xb).request(), origin);
       }
 
       /** Add to bulk an IndexRequest. */
-      private void esIndex(String index, String type, String id, byte[] json) throws Exception{
+      private void esIndex(String index, String type, String id, byte[] json, S3RetryJournal.Origin origin)
+            throws Exception{
          if (logger.isDebugEnabled()){
             logger.debug("Indexing in ES " + index + ", " + type + ", " + id);
          }
          if (logger.isTraceEnabled()){
             logger.trace("Json indexed : {}", json);
          }
-         bulkProcessor.add(client.prepareIndex(index, type, id).setSource(json).request());
+         bulkProcessor.add(client.prepareIndex(index, type, id).setSource(json).request(), origin);
       }
 
       /** Add to bulk a DeleteRequest. */
-      private void esDelete(String index, String type, String id) throws Exception{
+      private void esDelete(String index, String type, String id, S3RetryJournal.Origin origin) throws Exception{
          if (logger.isDebugEnabled()){
             logger.debug("Deleting from ES " + index + ", " + type + ", " + id);
          }
-         bulkProcessor.add(client.prepareDelete(index, type, id).request());
+         bulkProcessor.add(client.prepareDelete(index, type, id).request(), origin);
+      }
+
+      /** Delete the attachments extracted from a document. */
+      private void esDeleteAttachments(String parentId) throws Exception{
+         if (logger.isDebugEnabled()){
+            logger.debug("Deleting attachments of " + parentId + " from ES " + indexName);
+         }
+         client.prepareDeleteByQuery(indexName)
+               .setTypes(S3RiverUtil.INDEX_TYPE_ATTACHMENT)
+               .setQuery(QueryBuilders.termQuery(S3RiverUtil.DOC_FIELD_PARENT_ID, parentId))
+               .execute().actionGet();
+      }
+   }
+
+   /** Remember an error raised while reading content, to tell it apart from parse errors. */
+   private static class SourceInputStream extends FilterInputStream{
+
+      private IOException failure;
+
+      public SourceInputStream(InputStream in){
+         super(in);
+      }
+
+      @Override
+      public int read() throws IOException{
+         try {
+            return super.read();
+         } catch (IOException ioe) {
+            failure = ioe;
+            throw ioe;
+         }
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException{
+         try {
+            return super.read(b, off, len);
+         } catch (IOException ioe) {
+            failure = ioe;
+            throw ioe;
+         }
+      }
+
+      @Override
+      public long skip(long n) throws IOException{
+         try {
+            return super.skip(n);
+         } catch (IOException ioe) {
+            failure = ioe;
+            throw ioe;
+         }
+      }
+
+      public IOException getFailure(){
+         return failure;
       }
    }
 }
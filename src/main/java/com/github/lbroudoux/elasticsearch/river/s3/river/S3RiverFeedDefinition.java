@@ -18,7 +18,9 @@
  */
 package com.github.lbroudoux.elasticsearch.river.s3.river;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 /**
  * A definition bean wrapping information of river feed settings.
  * @author laurent
@@ -37,6 +39,37 @@ public class S3RiverFeedDefinition{
    private boolean jsonSupport;
    private boolean trackS3Deletions;
    private boolean truncateInitial;
+   private int listingConcurrency = 1;
+   private List<String> listingSplitPoints;
+   private int concurrency = 1;
+   private boolean userMetadata = true;
+   private boolean etagCheck = true;
+   private long parseTimeout = 5 * 60 * 1000;
+   private long maxInputBytes = -1;
+   private int maxExtractedChars = 100000;
+   private boolean forkParsing = false;
+   private int forkPoolSize = 1;
+   private String forkHeap;
+   private String parseCacheDir;
+   private long parseCacheSize = 1024L * 1024L * 1024L;
+   private Map<String, String> parsePolicies = Collections.emptyMap();
+   private boolean extractAttachments = false;
+   private String retryJournal;
+   private long retryBackoff = 60 * 1000;
+   private int retryMaxAttempts = 10;
+   private String eventSource;
+   private String eventQueue;
+   private long eventWait = 20 * 1000;
+   private long reconcileRate = 24 * 60 * 60 * 1000;
+   private String inventory;
+   private int inventoryConcurrency = 1;
+   private long rangedDownloadThreshold = -1;
+   private long rangedDownloadPartSize = 8 * 1024 * 1024;
+   private int rangedDownloadConcurrency = 4;
+   private long prefetchBytes = -1;
+   private long spoolThreshold = 1024 * 1024;
+   private int parseConcurrency = 1;
+   private int queueSize = 10;
    
    public S3RiverFeedDefinition(String feedname, String bucket, String pathPrefix, String downloadHost, int updateRate, 
          List<String> includes, List<String> excludes, String accessKey, String secretKey, boolean jsonSupport, boolean trackS3Deletions,
@@ -121,4 +154,221 @@ public class S3RiverFeedDefinition{
    public boolean isJsonSupport(){ return jsonSupport; }
    public boolean trackS3Deletions(){ return trackS3Deletions; }
    public boolean truncateInitialScan() { return truncateInitial; }
+
+   public int getListingConcurrency() {
+      return listingConcurrency;
+   }
+   public void setListingConcurrency(int listingConcurrency) {
+      this.listingConcurrency = listingConcurrency;
+   }
+
+   public List<String> getListingSplitPoints() {
+      return listingSplitPoints;
+   }
+   public void setListingSplitPoints(List<String> listingSplitPoints) {
+      this.listingSplitPoints = listingSplitPoints;
+   }
+
+   public int getConcurrency() {
+      return concurrency;
+   }
+   public void setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+   }
+
+   public int getParseConcurrency() {
+      return parseConcurrency;
+   }
+   public void setParseConcurrency(int parseConcurrency) {
+      this.parseConcurrency = parseConcurrency;
+   }
+
+   public int getQueueSize() {
+      return queueSize;
+   }
+   public void setQueueSize(int queueSize) {
+      this.queueSize = queueSize;
+   }
+
+   public boolean isUserMetadata() {
+      return userMetadata;
+   }
+   public void setUserMetadata(boolean userMetadata) {
+      this.userMetadata = userMetadata;
+   }
+
+   public boolean isEtagCheck() {
+      return etagCheck;
+   }
+   public void setEtagCheck(boolean etagCheck) {
+      this.etagCheck = etagCheck;
+   }
+
+   public long getParseTimeout() {
+      return parseTimeout;
+   }
+   public void setParseTimeout(long parseTimeout) {
+      this.parseTimeout = parseTimeout;
+   }
+
+   public long getMaxInputBytes() {
+      return maxInputBytes;
+   }
+   public void setMaxInputBytes(long maxInputBytes) {
+      this.maxInputBytes = maxInputBytes;
+   }
+
+   public int getMaxExtractedChars() {
+      return maxExtractedChars;
+   }
+   public void setMaxExtractedChars(int maxExtractedChars) {
+      this.maxExtractedChars = maxExtractedChars;
+   }
+
+   public boolean isForkParsing() {
+      return forkParsing;
+   }
+   public void setForkParsing(boolean forkParsing) {
+      this.forkParsing = forkParsing;
+   }
+
+   public int getForkPoolSize() {
+      return forkPoolSize;
+   }
+   public void setForkPoolSize(int forkPoolSize) {
+      this.forkPoolSize = forkPoolSize;
+   }
+
+   public String getForkHeap() {
+      return forkHeap;
+   }
+   public void setForkHeap(String forkHeap) {
+      this.forkHeap = forkHeap;
+   }
+
+   public String getParseCacheDir() {
+      return parseCacheDir;
+   }
+   public void setParseCacheDir(String parseCacheDir) {
+      this.parseCacheDir = parseCacheDir;
+   }
+
+   public long getParseCacheSize() {
+      return parseCacheSize;
+   }
+   public void setParseCacheSize(long parseCacheSize) {
+      this.parseCacheSize = parseCacheSize;
+   }
+
+   public Map<String, String> getParsePolicies() {
+      return parsePolicies;
+   }
+   public void setParsePolicies(Map<String, String> parsePolicies) {
+      this.parsePolicies = parsePolicies;
+   }
+
+   public boolean isExtractAttachments() {
+      return extractAttachments;
+   }
+   public void setExtractAttachments(boolean extractAttachments) {
+      this.extractAttachments = extractAttachments;
+   }
+
+   public String getRetryJournal() {
+      return retryJournal;
+   }
+   public void setRetryJournal(String retryJournal) {
+      this.retryJournal = retryJournal;
+   }
+
+   public long getRetryBackoff() {
+      return retryBackoff;
+   }
+   public void setRetryBackoff(long retryBackoff) {
+      this.retryBackoff = retryBackoff;
+   }
+
+   public int getRetryMaxAttempts() {
+      return retryMaxAttempts;
+   }
+   public void setRetryMaxAttempts(int retryMaxAttempts) {
+      this.retryMaxAttempts = retryMaxAttempts;
+   }
+
+   public String getEventSource() {
+      return eventSource;
+   }
+   public void setEventSource(String eventSource) {
+      this.eventSource = eventSource;
+   }
+
+   public String getEventQueue() {
+      return eventQueue;
+   }
+   public void setEventQueue(String eventQueue) {
+      this.eventQueue = eventQueue;
+   }
+
+   public long getEventWait() {
+      return eventWait;
+   }
+   public void setEventWait(long eventWait) {
+      this.eventWait = eventWait;
+   }
+
+   public long getReconcileRate() {
+      return reconcileRate;
+   }
+   public void setReconcileRate(long reconcileRate) {
+      this.reconcileRate = reconcileRate;
+   }
+
+   public String getInventory() {
+      return inventory;
+   }
+   public void setInventory(String inventory) {
+      this.inventory = inventory;
+   }
+
+   public int getInventoryConcurrency() {
+      return inventoryConcurrency;
+   }
+   public void setInventoryConcurrency(int inventoryConcurrency) {
+      this.inventoryConcurrency = inventoryConcurrency;
+   }
+
+   public long getRangedDownloadThreshold() {
+      return rangedDownloadThreshold;
+   }
+   public void setRangedDownloadThreshold(long rangedDownloadThreshold) {
+      this.rangedDownloadThreshold = rangedDownloadThreshold;
+   }
+
+   public long getRangedDownloadPartSize() {
+      return rangedDownloadPartSize;
+   }
+   public void setRangedDownloadPartSize(long rangedDownloadPartSize) {
+      this.rangedDownloadPartSize = rangedDownloadPartSize;
+   }
+
+   public int getRangedDownloadConcurrency() {
+      return rangedDownloadConcurrency;
+   }
+   public void setRangedDownloadConcurrency(int rangedDownloadConcurrency) {
+      this.rangedDownloadConcurrency = rangedDownloadConcurrency;
+   }
+
+   public long getPrefetchBytes() {
+      return prefetchBytes;
+   }
+   public void setPrefetchBytes(long prefetchBytes) {
+      this.prefetchBytes = prefetchBytes;
+   }
+
+   public long getSpoolThreshold() {
+      return spoolThreshold;
+   }
+   public void setSpoolThreshold(long spoolThreshold) {
+      this.spoolThreshold = spoolThreshold;
+   }
 }
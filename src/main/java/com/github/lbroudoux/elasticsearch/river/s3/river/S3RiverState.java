@@ -0,0 +1,230 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.util.Map;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+/**
+ * Scan state of a river (last scan time and initial scan bookmark) kept in a single
+ * versioned document of the <code>_river</code> index. State is read once and then cached
+ * in memory; each checkpoint is one atomic index of the whole document, sent directly
+ * rather than through the content bulk processor.
+ * @author laurent
+ */
+public class S3RiverState{
+
+   private static final ESLogger logger = Loggers.getLogger(S3RiverState.class);
+
+   public static final String STATE_ID = "_s3state";
+
+   /** Documents used by previous versions, one per field. Only read for migration. */
+   static final String LAST_SCAN_TIME_FIELD = "_lastScanTime";
+   static final String INITIAL_SCAN_BOOKMARK_FIELD = "_initialScanBookmark";
+   static final String INITIAL_SCAN_FINISHED_FIELD = "_initialScanFinished";
+   static final String ID_SCHEME_FIELD = "_idScheme";
+
+   /** Document ids digested from S3 keys as listed, URL encoded. */
+   static final int LEGACY_ID_SCHEME = 1;
+   /** Document ids digested from decoded S3 keys, whatever the way keys have been found. */
+   static final int ID_SCHEME = 2;
+
+   private final Client client;
+   private final String riverName;
+   private final String feedname;
+
+   private boolean loaded = false;
+   private long version = -1;
+   private Long lastScanTime;
+   private String initialScanBookmark;
+   private boolean initialScanFinished = false;
+   private int idScheme = LEGACY_ID_SCHEME;
+
+   public S3RiverState(Client client, String riverName, String feedname){
+      this.client = client;
+      this.riverName = riverName;
+      this.feedname = feedname;
+   }
+
+   /** Read state from index if not already cached. */
+   public synchronized void load(){
+      if (loaded){
+         return;
+      }
+      // Realtime get does not need the _river index to be refreshed.
+      GetResponse response = client.prepareGet("_river", riverName, STATE_ID).execute().actionGet();
+      if (response.isExists()){
+         readFrom(response.getSourceAsMap());
+         version = response.getVersion();
+      } else {
+         loadLegacy();
+         version = -1;
+      }
+      if (lastScanTime == null && initialScanBookmark == null && !initialScanFinished){
+         // Nothing indexed yet, there is no id to migrate.
+         idScheme = ID_SCHEME;
+      }
+      loaded = true;
+      if (logger.isDebugEnabled()){
+         logger.debug("{}: loaded state {}", riverName, this);
+      }
+   }
+
+   /** Fetch state of previous versions from per field documents with one multi get. */
+   private void loadLegacy(){
+      MultiGetResponse responses = client.prepareMultiGet()
+            .add("_river", riverName, LAST_SCAN_TIME_FIELD)
+            .add("_river", riverName, INITIAL_SCAN_BOOKMARK_FIELD)
+            .add("_river", riverName, INITIAL_SCAN_FINISHED_FIELD)
+            .execute().actionGet();
+      for (MultiGetItemResponse item : responses.getResponses()){
+         if (!item.isFailed() && item.getResponse().isExists()){
+            Map<String, Object> source = item.getResponse().getSourceAsMap();
+            Object fields = source.get("amazon-s3");
+            if (fields instanceof Map){
+               readField(item.getId(), ((Map<?, ?>)fields).get(item.getId()));
+            }
+         }
+      }
+      if (lastScanTime != null || initialScanBookmark != null || initialScanFinished){
+         logger.info("{}: migrating scan state from previous documents", riverName);
+      }
+   }
+
+   /** Read state fields from an <code>amazon-s3</code> source. */
+   void readFrom(Map<String, Object> source){
+      Object fields = source.get("amazon-s3");
+      if (fields instanceof Map){
+         Map<?, ?> map = (Map<?, ?>)fields;
+         readField(LAST_SCAN_TIME_FIELD, map.get(LAST_SCAN_TIME_FIELD));
+         readField(INITIAL_SCAN_BOOKMARK_FIELD, map.get(INITIAL_SCAN_BOOKMARK_FIELD));
+         readField(INITIAL_SCAN_FINISHED_FIELD, map.get(INITIAL_SCAN_FINISHED_FIELD));
+         readField(ID_SCHEME_FIELD, map.get(ID_SCHEME_FIELD));
+      }
+   }
+
+   private void readField(String field, Object value){
+      if (LAST_SCAN_TIME_FIELD.equals(field)){
+         lastScanTime = null;
+         if (value != null){
+            try{
+               lastScanTime = Long.parseLong(value.toString());
+            } catch (NumberFormatException nfe){
+               logger.warn("Last recorded {} is not a Long: {}", field, value);
+            }
+         }
+      } else if (INITIAL_SCAN_BOOKMARK_FIELD.equals(field)){
+         initialScanBookmark = value != null ? value.toString() : null;
+      } else if (INITIAL_SCAN_FINISHED_FIELD.equals(field)){
+         initialScanFinished = value != null && Boolean.parseBoolean(value.toString());
+      } else if (ID_SCHEME_FIELD.equals(field)){
+         idScheme = value instanceof Number ? ((Number)value).intValue() : LEGACY_ID_SCHEME;
+      }
+   }
+
+   XContentBuilder toXContent(Long lastScanTime, String initialScanBookmark, boolean initialScanFinished) throws Exception{
+      return jsonBuilder()
+            .startObject()
+               .startObject("amazon-s3")
+                  .field("feedname", feedname)
+                  .field(LAST_SCAN_TIME_FIELD, lastScanTime)
+                  .field(INITIAL_SCAN_BOOKMARK_FIELD, initialScanBookmark)
+                  .field(INITIAL_SCAN_FINISHED_FIELD, initialScanFinished)
+                  .field(ID_SCHEME_FIELD, idScheme)
+               .endObject()
+            .endObject();
+   }
+
+   /**
+    * Write the whole state in one index request, conditioned on the version read or written
+    * last. On a version conflict the cache is invalidated so that state is read again next time.
+    */
+   public synchronized void checkpoint(Long lastScanTime, String initialScanBookmark, boolean initialScanFinished) throws Exception{
+      if (logger.isDebugEnabled()){
+         logger.debug("{}: checkpoint lastScanTime: {}, bookmark: {}, finished: {}", riverName,
+               lastScanTime, initialScanBookmark, initialScanFinished);
+      }
+      IndexRequestBuilder request = client.prepareIndex("_river", riverName, STATE_ID)
+            .setSource(toXContent(lastScanTime, initialScanBookmark, initialScanFinished));
+      if (version >= 0){
+         request.setVersion(version);
+      } else {
+         request.setCreate(true);
+      }
+      IndexResponse response;
+      try{
+         response = request.execute().actionGet();
+      } catch (Exception e){
+         if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException){
+            logger.warn("{}: scan state has been modified concurrently, reloading it", riverName);
+         }
+         // Outcome is unknown, read state again before next write.
+         loaded = false;
+         throw e;
+      }
+      this.version = response.getVersion();
+      this.lastScanTime = lastScanTime;
+      this.initialScanBookmark = initialScanBookmark;
+      this.initialScanFinished = initialScanFinished;
+   }
+
+   public synchronized Long getLastScanTime(){
+      return lastScanTime;
+   }
+
+   public synchronized String getInitialScanBookmark(){
+      return initialScanBookmark;
+   }
+
+   public synchronized boolean isInitialScanFinished(){
+      return initialScanFinished;
+   }
+
+   /** @return True if documents may have been indexed with ids of a previous scheme */
+   public synchronized boolean isIdMigrationNeeded(){
+      return idScheme < ID_SCHEME;
+   }
+
+   /** Record that documents of previous id scheme have been removed, this is saved by next checkpoint. */
+   public synchronized void idsMigrated(){
+      idScheme = ID_SCHEME;
+   }
+
+   public synchronized long getVersion(){
+      return version;
+   }
+
+   @Override
+   public synchronized String toString(){
+      return "version: " + version + ", lastScanTime: " + lastScanTime + ", bookmark: " + initialScanBookmark
+            + ", initialScanFinished: " + initialScanFinished + ", idScheme: " + idScheme;
+   }
+}
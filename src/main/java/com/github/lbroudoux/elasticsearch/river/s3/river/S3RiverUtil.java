@@ -20,9 +20,14 @@ package com.github.lbroudoux.elasticsearch.river.s3.river;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.codec.binary.Base64;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
@@ -33,11 +38,16 @@ import org.elasticsearch.common.xcontent.support.XContentMapValues;
 public class S3RiverUtil{
 
    public static final String INDEX_TYPE_DOC = "doc";
+   public static final String INDEX_TYPE_ATTACHMENT = "attachment";
    
    public static final String DOC_FIELD_TITLE = "title";
    public static final String DOC_FIELD_MODIFIED_DATE = "modifiedDate";
    public static final String DOC_FIELD_SOURCE_URL = "source_url";
    public static final String DOC_FIELD_METADATA = "metadata";
+   public static final String DOC_FIELD_ETAG = "etag";
+   public static final String DOC_FIELD_SIZE = "size";
+   public static final String DOC_FIELD_PARENT_ID = "parent_id";
+   public static final String DOC_FIELD_ATTACHMENTS = "attachments";
    
    /**
     * Build mapping description for Amazon S3 files.
@@ -52,6 +62,10 @@ public class S3RiverUtil{
             .startObject(DOC_FIELD_MODIFIED_DATE).field("type", "date").endObject()
             .startObject(DOC_FIELD_SOURCE_URL).field("type", "string").endObject()
             .startObject(DOC_FIELD_METADATA).field("type", "object").endObject()
+            .startObject(DOC_FIELD_ETAG).field("type", "string").field("index", "not_analyzed").endObject()
+            .startObject(DOC_FIELD_SIZE).field("type", "long").endObject()
+            .startObject(DOC_FIELD_PARENT_ID).field("type", "string").field("index", "not_analyzed").endObject()
+            .startObject(DOC_FIELD_ATTACHMENTS).field("type", "integer").endObject()
             .startObject("file")
                .startObject("properties")
                   .startObject("title").field("type", "string").field("store", "yes").endObject()
@@ -173,4 +187,53 @@ public class S3RiverUtil{
       
       return false;
    }
+
+   /**
+    * Compute the SHA-256 digest of an Amazon S3 key, the raw form of document ids.
+    * @param key The S3 key as listed
+    * @return The 32 bytes digest of key
+    * @throws NoSuchAlgorithmException if SHA-256 is not available
+    */
+   public static byte[] digestS3Key(String key) throws NoSuchAlgorithmException{
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      return md.digest(key.getBytes());
+   }
+
+   /**
+    * Compute the digest of an URL encoded Amazon S3 key. Listing, event notifications and inventory
+    * reports do not encode keys the same way (space may become '+' or '%20'), so key is decoded first
+    * for a file to get the same id whatever the way it has been found.
+    * @param encodedKey The S3 key, URL encoded
+    * @return The 32 bytes digest of decoded key
+    * @throws NoSuchAlgorithmException if SHA-256 is not available
+    */
+   public static byte[] digestEncodedS3Key(String encodedKey) throws NoSuchAlgorithmException{
+      try {
+         MessageDigest md = MessageDigest.getInstance("SHA-256");
+         return md.digest(URLDecoder.decode(encodedKey, "UTF-8").getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException uee){
+         throw new IllegalStateException("UTF-8 is not supported", uee);
+      }
+   }
+
+   /**
+    * Build a document id from the digest of a S3 key. This is a modified Base64
+    * encoding of digest, being safe for urls and file names.
+    * @param digest The digest of S3 key
+    * @return The document id
+    */
+   public static String buildIndexIdFromDigest(byte[] digest){
+      //return key.replace('/', '-').replace(' ', '-');
+      return Base64.encodeBase64String(digest).replace('/', '_').replace('+', '-').replace("=", "").replace("\n", "").replace("\r", "");
+   }
+
+   /**
+    * Retrieve the digest of a S3 key from a document id.
+    * @param id A document id built by {@link #buildIndexIdFromDigest(byte[])}
+    * @return The digest of S3 key (may be of wrong length if id was not built from a key)
+    */
+   public static byte[] buildDigestFromIndexId(String id){
+      // Base64 decoder accepts the url safe alphabet and missing padding.
+      return Base64.decodeBase64(id);
+   }
 }
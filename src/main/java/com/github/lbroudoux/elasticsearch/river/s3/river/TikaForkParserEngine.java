@@ -0,0 +1,264 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tika.detect.Detector;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.io.TemporaryResources;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.ParserDecorator;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.ContentHandlerDecorator;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+/**
+ * A parsing engine delegating parses to a pool of child JVMs so that heap and GC of the
+ * Elasticsearch node are isolated from parse load. Document content is streamed to a worker
+ * and extracted text and metadata stream back over the worker process pipes. A worker that
+ * dies (crash, out of memory) is discarded and replaced by a fresh one on next parse. So is
+ * a worker whose parse has been abandoned after a timeout.
+ * @author laurent
+ */
+public class TikaForkParserEngine extends TikaParserEngine implements Closeable{
+
+   /** Namespace of the elements carrying worker metadata back to this JVM. */
+   static final String METADATA_NS = "urn:s3-river:metadata";
+   static final String METADATA_ELEMENT = "value";
+
+   private final Detector detector;
+   private final ForkParser forkParser;
+
+   /**
+    * @param autoDetectParser The parser shipped to and run by workers
+    * @param detector The type detector, run within this JVM
+    * @param maxStringLength Default max number of characters extracted per document
+    * @param poolSize Max number of worker JVMs
+    * @param heap Max heap of each worker JVM (eg. 512m), null to keep JVM default
+    */
+   public TikaForkParserEngine(Parser autoDetectParser, Detector detector, int maxStringLength, int poolSize, String heap){
+      super(autoDetectParser, detector, null, maxStringLength);
+      this.detector = detector;
+      forkParser = new ForkParser(TikaForkParserEngine.class.getClassLoader(), new MetadataSendingParser(autoDetectParser));
+      forkParser.setPoolSize(poolSize);
+      forkParser.setJavaCommand(buildJavaCommand(heap));
+   }
+
+   /**
+    * Parse a document into a string within a worker JVM. Caller context cannot be shipped to
+    * worker, so embedded documents are always parsed into their container text. Worker goes on
+    * parsing once maxChars are extracted so that it can send document metadata back.
+    * @param stream The document content, closed once parsed
+    * @param metadata The metadata of document, filled by worker
+    * @param maxChars Max number of characters extracted
+    * @param context Ignored
+    * @return Extracted text, truncated to maxChars
+    * @throws IOException if stream cannot be read or worker died
+    * @throws TikaException if document cannot be parsed
+    */
+   @Override
+   protected String parse(InputStream stream, Metadata metadata, int maxChars, ParseContext context)
+         throws IOException, TikaException{
+      long start = System.nanoTime();
+      boolean failed = true;
+
+      TemporaryResources tmp = new TemporaryResources();
+      TruncatingWriter writer = new TruncatingWriter(maxChars);
+      Metadata workerMetadata = new Metadata();
+      try {
+         // Type is detected here so that it is known even if worker fails.
+         TikaInputStream tis = TikaInputStream.get(stream, tmp);
+         metadata.set(Metadata.CONTENT_TYPE, detector.detect(tis, metadata).toString());
+         forkParser.parse(tis, new WorkerContentHandler(new BodyContentHandler(writer), workerMetadata),
+               metadata, new ParseContext());
+         failed = false;
+      } catch (SAXException e){
+         throw new TikaException("Unexpected SAX processing failure", e);
+      } finally {
+         try {
+            tmp.dispose();
+         } finally {
+            stream.close();
+         }
+         for (String name : workerMetadata.names()){
+            metadata.remove(name);
+            for (String value : workerMetadata.getValues(name)){
+               metadata.add(name, value);
+            }
+         }
+         // Allocations happen within worker, they are not accounted here.
+         statsFor(typeOf(metadata)).record(System.nanoTime() - start, 0L, failed);
+      }
+      String result = writer.toString();
+      statsFor(typeOf(metadata)).recordChars(result.length());
+      return result;
+   }
+
+   /** Stop all worker JVMs. */
+   @Override
+   public void close(){
+      forkParser.close();
+   }
+
+   private static MediaType typeOf(Metadata metadata){
+      String type = metadata.get(Metadata.CONTENT_TYPE);
+      MediaType mediaType = type == null ? null : MediaType.parse(type);
+      return mediaType == null ? MediaType.OCTET_STREAM : mediaType;
+   }
+
+   /** Workers are launched with the same java executable as current node. */
+   private static List<String> buildJavaCommand(String heap){
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      if (heap != null){
+         command.add("-Xmx" + heap);
+      }
+      command.add("-Djava.awt.headless=true");
+      command.add("-Djdk.xml.entityExpansionLimit=0");
+      return command;
+   }
+
+   /**
+    * Parser run by workers. Fork parser only sends back the metadata written in document head,
+    * so the whole metadata is sent as elements of a dedicated namespace once content is parsed.
+    */
+   static class MetadataSendingParser extends ParserDecorator{
+
+      private static final long serialVersionUID = 1L;
+
+      public MetadataSendingParser(Parser parser){
+         super(parser);
+      }
+
+      @Override
+      public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+            throws IOException, SAXException, TikaException{
+         super.parse(stream, handler, metadata, context);
+         for (String name : metadata.names()){
+            for (String value : metadata.getValues(name)){
+               AttributesImpl attributes = new AttributesImpl();
+               attributes.addAttribute("", "name", "name", "CDATA", name);
+               attributes.addAttribute("", "content", "content", "CDATA", value);
+               handler.startElement(METADATA_NS, METADATA_ELEMENT, METADATA_ELEMENT, attributes);
+               handler.endElement(METADATA_NS, METADATA_ELEMENT, METADATA_ELEMENT);
+            }
+         }
+      }
+   }
+
+   /**
+    * Handler receiving worker events. It collects metadata sent by worker. An abandoned parse
+    * (its thread being interrupted) makes it throw an unchecked exception so that fork parser
+    * discards the worker instead of waiting for it. A worker hung without sending anything is
+    * stopped by its own watchdog, and fork parser then discards it as a dead one.
+    */
+   static class WorkerContentHandler extends ContentHandlerDecorator{
+
+      private final Metadata metadata;
+
+      public WorkerContentHandler(ContentHandler handler, Metadata metadata){
+         super(handler);
+         this.metadata = metadata;
+      }
+
+      @Override
+      public void startElement(String uri, String localName, String name, Attributes atts) throws SAXException{
+         checkAbandoned();
+         if (METADATA_NS.equals(uri)){
+            metadata.add(atts.getValue("name"), atts.getValue("content"));
+         } else {
+            super.startElement(uri, localName, name, atts);
+         }
+      }
+
+      @Override
+      public void endElement(String uri, String localName, String name) throws SAXException{
+         if (!METADATA_NS.equals(uri)){
+            super.endElement(uri, localName, name);
+         }
+      }
+
+      @Override
+      public void characters(char[] ch, int start, int length) throws SAXException{
+         checkAbandoned();
+         super.characters(ch, start, length);
+      }
+
+      @Override
+      public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException{
+         checkAbandoned();
+         super.ignorableWhitespace(ch, start, length);
+      }
+
+      private static void checkAbandoned(){
+         if (Thread.currentThread().isInterrupted()){
+            throw new IllegalStateException("Parse has been abandoned, worker is discarded");
+         }
+      }
+   }
+
+   /**
+    * Writer keeping maxChars of text and dropping the rest rather than failing, as a failure
+    * would stop listening to worker before it sends metadata.
+    */
+   static class TruncatingWriter extends Writer{
+
+      private final StringBuilder buffer = new StringBuilder();
+      private final int maxChars;
+
+      public TruncatingWriter(int maxChars){
+         this.maxChars = maxChars < 0 ? Integer.MAX_VALUE : maxChars;
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len){
+         int count = Math.min(len, maxChars - buffer.length());
+         if (count > 0){
+            buffer.append(cbuf, off, count);
+         }
+      }
+
+      @Override
+      public void flush(){
+      }
+
+      @Override
+      public void close(){
+      }
+
+      @Override
+      public String toString(){
+         return buffer.toString();
+      }
+   }
+}
@@ -19,6 +19,7 @@
 package com.github.lbroudoux.elasticsearch.river.s3.river;
 
 import org.apache.tika.Tika;
+import org.apache.tika.parser.CompositeParser;
 /**
  * Simple singleton holder for Apache Tika.
  * @author laurent
@@ -27,8 +28,16 @@ public class TikaHolder {
 
    private static final Tika tika = new Tika();
 
+   private static final TikaParserEngine engine = new TikaParserEngine(tika.getParser(), tika.getDetector(),
+         (CompositeParser)tika.getParser(), tika.getMaxStringLength());
+
    /** @return This holder singleton's instance. */
    public static Tika tika(){
       return tika;
    }
+
+   /** @return The thread safe parsing engine built on this holder's Tika instance. */
+   public static TikaParserEngine engine(){
+      return engine;
+   }
 }
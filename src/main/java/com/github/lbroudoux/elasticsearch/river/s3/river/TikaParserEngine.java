@@ -0,0 +1,450 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tika.detect.Detector;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TemporaryResources;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.parser.CompositeParser;
+import org.apache.tika.parser.DefaultParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.SecureContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.xml.sax.SAXException;
+/**
+ * A thread safe parsing engine built on top of Tika auto detection. Instead of going through
+ * the whole parsers registry for each document, the parser resolved for a media type is cached.
+ * Detector and parsers are shared by all threads as they are stateless; parse contexts and content
+ * handlers are created per document because parsers may store per document state into them.
+ * Parse throughput and allocation are recorded per detected media type. Parses can be run
+ * under a deadline so that a pathological document cannot hold a parse thread forever.
+ * @author laurent
+ */
+public class TikaParserEngine{
+
+   private static final ESLogger logger = Loggers.getLogger(TikaParserEngine.class);
+
+   private final Parser autoDetectParser;
+   private final Detector detector;
+   private final CompositeParser compositeParser;
+   private final int maxStringLength;
+
+   private final ConcurrentMap<MediaType, Parser> parsersCache = new ConcurrentHashMap<MediaType, Parser>();
+   private final ConcurrentMap<String, ParseStats> stats = new ConcurrentHashMap<String, ParseStats>();
+
+   /**
+    * Threads running parses having a deadline: one per waiting caller, plus the threads of
+    * abandoned parses that are still running (they are not reused).
+    */
+   private final ExecutorService watchedParsers = Executors.newCachedThreadPool(
+         EsExecutors.daemonThreadFactory("tika_parser"));
+   /** Abandoned parses whose thread is still running, these threads are bounded. */
+   private final AtomicInteger abandonedParses = new AtomicInteger();
+   private volatile int maxAbandonedParses = 16;
+
+   /**
+    * @param autoDetectParser The parser used by Tika facade, for embedded documents
+    * @param detector The type detector
+    * @param compositeParser The registry of parsers per media type
+    * @param maxStringLength Default max number of characters extracted per document
+    */
+   public TikaParserEngine(Parser autoDetectParser, Detector detector, CompositeParser compositeParser, int maxStringLength){
+      this.autoDetectParser = autoDetectParser;
+      this.detector = detector;
+      this.compositeParser = compositeParser;
+      this.maxStringLength = maxStringLength;
+   }
+
+   /**
+    * Parse a document into a string, as Tika facade does.
+    * @param stream The document content, closed once parsed
+    * @param metadata The metadata of document, filled by parser
+    * @return Extracted text, truncated to max string length
+    * @throws IOException if stream cannot be read
+    * @throws TikaException if document cannot be parsed
+    */
+   public String parseToString(InputStream stream, Metadata metadata) throws IOException, TikaException{
+      return parseToString(stream, metadata, maxStringLength);
+   }
+
+   /**
+    * Parse a document into a string under the watch of a deadline. Parsing is done by another
+    * thread; if it is not over in time, this thread is interrupted, stream is closed and the
+    * parse is abandoned so that caller can go on with other documents.
+    * @param stream The document content, closed once parsed
+    * @param metadata The metadata of document, filled by parser
+    * @param maxChars Max number of characters extracted
+    * @param timeoutMillis Parse deadline in milliseconds, 0 or less for no deadline
+    * @return Extracted text, truncated to maxChars
+    * @throws IOException if stream cannot be read
+    * @throws TikaException if document cannot be parsed or parse timed out
+    */
+   public String parseToString(InputStream stream, Metadata metadata, int maxChars, long timeoutMillis)
+         throws IOException, TikaException{
+      return parseToString(stream, metadata, maxChars, timeoutMillis, null);
+   }
+
+   /**
+    * Parse a document into a string under the watch of a deadline, with a caller provided parse
+    * context (holding an embedded document extractor for example).
+    * @param stream The document content, closed once parsed
+    * @param metadata The metadata of document, filled by parser
+    * @param maxChars Max number of characters extracted
+    * @param timeoutMillis Parse deadline in milliseconds, 0 or less for no deadline
+    * @param context The parse context, null for a default one
+    * @return Extracted text, truncated to maxChars
+    * @throws IOException if stream cannot be read
+    * @throws TikaException if document cannot be parsed or parse timed out
+    * @throws ParseRejectedException if too many abandoned parses are still running
+    */
+   public String parseToString(final InputStream stream, Metadata metadata, final int maxChars, long timeoutMillis,
+         final ParseContext context) throws IOException, TikaException{
+      if (timeoutMillis <= 0){
+         return parse(stream, metadata, maxChars, context);
+      }
+      if (abandonedParses.get() >= maxAbandonedParses){
+         stream.close();
+         throw new ParseRejectedException(abandonedParses.get() + " abandoned parses are still running");
+      }
+      // Parser works on its own metadata so that an abandoned parse cannot alter caller's one.
+      final Metadata parseMetadata = new Metadata();
+      for (String name : metadata.names()){
+         for (String value : metadata.getValues(name)){
+            parseMetadata.add(name, value);
+         }
+      }
+      // Set by whichever of parse end and deadline comes first.
+      final AtomicBoolean over = new AtomicBoolean();
+      Future<String> future = watchedParsers.submit(new Callable<String>(){
+         @Override
+         public String call() throws Exception{
+            try {
+               return parse(stream, parseMetadata, maxChars, context);
+            } finally {
+               if (over.getAndSet(true)){
+                  abandonedParses.decrementAndGet();
+               }
+            }
+         }
+      });
+      try {
+         String result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+         for (String name : parseMetadata.names()){
+            metadata.remove(name);
+            for (String value : parseMetadata.getValues(name)){
+               metadata.add(name, value);
+            }
+         }
+         return result;
+      } catch (TimeoutException te){
+         if (!over.getAndSet(true)){
+            abandonedParses.incrementAndGet();
+         }
+         future.cancel(true);
+         try {
+            stream.close();
+         } catch (IOException ioe){
+            logger.debug("Error while closing timed out parse stream", ioe);
+         }
+         String type = parseMetadata.get(Metadata.CONTENT_TYPE);
+         statsFor(type == null ? MediaType.OCTET_STREAM : MediaType.parse(type)).timeouts.incrementAndGet();
+         throw new ParseTimeoutException("Parse timed out after " + timeoutMillis + " ms");
+      } catch (InterruptedException ie){
+         future.cancel(true);
+         Thread.currentThread().interrupt();
+         throw new TikaException("Interrupted while waiting for parse", ie);
+      } catch (ExecutionException ee){
+         Throwable cause = ee.getCause();
+         if (cause instanceof IOException){
+            throw (IOException)cause;
+         } else if (cause instanceof TikaException){
+            throw (TikaException)cause;
+         } else if (cause instanceof RuntimeException){
+            throw (RuntimeException)cause;
+         }
+         throw new TikaException("Unexpected parse failure", cause);
+      }
+   }
+
+   /**
+    * Parse a document into a string.
+    * @param stream The document content, closed once parsed
+    * @param metadata The metadata of document, filled by parser
+    * @param maxChars Max number of characters extracted
+    * @return Extracted text, truncated to maxChars
+    * @throws IOException if stream cannot be read
+    * @throws TikaException if document cannot be parsed
+    */
+   public String parseToString(InputStream stream, Metadata metadata, int maxChars) throws IOException, TikaException{
+      return parse(stream, metadata, maxChars, null);
+   }
+
+   /**
+    * Parse a document into a string.
+    * @param stream The document content, closed once parsed
+    * @param metadata The metadata of document, filled by parser
+    * @param maxChars Max number of characters extracted
+    * @param context The parse context, null for a default one
+    * @return Extracted text, truncated to maxChars
+    * @throws IOException if stream cannot be read
+    * @throws TikaException if document cannot be parsed
+    */
+   protected String parse(InputStream stream, Metadata metadata, int maxChars, ParseContext context)
+         throws IOException, TikaException{
+      long start = System.nanoTime();
+      long allocatedStart = currentThreadAllocatedBytes();
+      ParseStats typeStats = null;
+      boolean failed = true;
+
+      TemporaryResources tmp = new TemporaryResources();
+      WriteOutContentHandler handler = new WriteOutContentHandler(maxChars);
+      try {
+         TikaInputStream tis = TikaInputStream.get(stream, tmp);
+         MediaType type = detector.detect(tis, metadata);
+         metadata.set(Metadata.CONTENT_TYPE, type.toString());
+         typeStats = statsFor(type);
+
+         Parser parser = parserFor(type);
+         metadata.add("X-Parsed-By", parser.getClass().getName());
+         if (context == null){
+            context = new ParseContext();
+         }
+         if (context.get(Parser.class) == null){
+            context.set(Parser.class, autoDetectParser);
+         }
+
+         // Protect against zip bombs as auto detect parser does.
+         SecureContentHandler secureHandler = new SecureContentHandler(new BodyContentHandler(handler), tis);
+         try {
+            parser.parse(tis, secureHandler, metadata, context);
+         } catch (SAXException e){
+            secureHandler.throwIfCauseOf(e);
+            throw e;
+         }
+         failed = false;
+      } catch (SAXException e){
+         if (!handler.isWriteLimitReached(e)){
+            throw new TikaException("Unexpected SAX processing failure", e);
+         }
+         failed = false;
+      } finally {
+         try {
+            tmp.dispose();
+         } finally {
+            stream.close();
+         }
+         if (typeStats != null){
+            typeStats.record(System.nanoTime() - start, currentThreadAllocatedBytes() - allocatedStart, failed);
+         }
+      }
+      String result = handler.toString();
+      if (typeStats != null){
+         typeStats.recordChars(result.length());
+      }
+      return result;
+   }
+
+   /**
+    * Set how many abandoned parses may still be running before new parses having a deadline are
+    * rejected, so that pathological documents cannot pile up threads.
+    * @param maxAbandonedParses Max number of abandoned parses still running
+    */
+   public void setMaxAbandonedParses(int maxAbandonedParses){
+      this.maxAbandonedParses = maxAbandonedParses;
+   }
+
+   /** @return Number of abandoned parses still running */
+   public int getAbandonedParses(){
+      return abandonedParses.get();
+   }
+
+   /** @return Default max number of characters extracted per document */
+   public int getMaxStringLength(){
+      return maxStringLength;
+   }
+
+   /** Resolve the parser of a media type once and for all. */
+   protected Parser parserFor(MediaType type){
+      Parser parser = parsersCache.get(type);
+      if (parser == null){
+         parser = resolveParser(compositeParser, type);
+         // Default parser is a registry of registries, go down to the actual parser.
+         while (parser instanceof DefaultParser || parser.getClass() == CompositeParser.class){
+            parser = resolveParser((CompositeParser)parser, type);
+         }
+         parsersCache.putIfAbsent(type, parser);
+      }
+      return parser;
+   }
+
+   /** Find the parser of a media type (or of its closest supertype) as composite parser does. */
+   private static Parser resolveParser(CompositeParser composite, MediaType type){
+      Map<MediaType, Parser> parsers = composite.getParsers(new ParseContext());
+      MediaTypeRegistry registry = composite.getMediaTypeRegistry();
+      MediaType candidate = registry.normalize(type);
+      while (candidate != null){
+         Parser parser = parsers.get(candidate);
+         if (parser != null){
+            return parser;
+         }
+         candidate = registry.getSupertype(candidate);
+      }
+      return composite.getFallback();
+   }
+
+   protected ParseStats statsFor(MediaType type){
+      String name = type.getBaseType().toString();
+      ParseStats typeStats = stats.get(name);
+      if (typeStats == null){
+         stats.putIfAbsent(name, new ParseStats());
+         typeStats = stats.get(name);
+      }
+      return typeStats;
+   }
+
+   /** @return Parse statistics per media type, sorted by type name */
+   public Map<String, ParseStats> getStats(){
+      return new TreeMap<String, ParseStats>(stats);
+   }
+
+   /** Log parse statistics per media type. */
+   public void logStats(String riverName){
+      if (logger.isInfoEnabled()){
+         for (Map.Entry<String, ParseStats> entry : getStats().entrySet()){
+            logger.info("{}: parse stats for {}: {}", riverName, entry.getKey(), entry.getValue());
+         }
+      }
+   }
+
+   /** @return Bytes allocated by current thread, or 0 if not supported by JVM */
+   private static long currentThreadAllocatedBytes(){
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      if (threadBean instanceof com.sun.management.ThreadMXBean){
+         return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return 0L;
+   }
+
+   /** Cumulated parse statistics of a media type. */
+   public static class ParseStats{
+
+      private final AtomicLong documents = new AtomicLong();
+      private final AtomicLong failures = new AtomicLong();
+      private final AtomicLong timeouts = new AtomicLong();
+      private final AtomicLong nanos = new AtomicLong();
+      private final AtomicLong allocatedBytes = new AtomicLong();
+      private final AtomicLong chars = new AtomicLong();
+
+      void record(long elapsedNanos, long allocated, boolean failed){
+         documents.incrementAndGet();
+         if (failed){
+            failures.incrementAndGet();
+         }
+         nanos.addAndGet(elapsedNanos);
+         allocatedBytes.addAndGet(allocated);
+      }
+
+      void recordChars(long extracted){
+         chars.addAndGet(extracted);
+      }
+
+      public long getDocuments(){
+         return documents.get();
+      }
+
+      public long getFailures(){
+         return failures.get();
+      }
+
+      public long getTimeouts(){
+         return timeouts.get();
+      }
+
+      public long getTotalMillis(){
+         return nanos.get() / 1000000L;
+      }
+
+      public long getAllocatedBytes(){
+         return allocatedBytes.get();
+      }
+
+      public long getChars(){
+         return chars.get();
+      }
+
+      @Override
+      public String toString(){
+         long docs = Math.max(1L, documents.get());
+         double seconds = Math.max(1L, nanos.get()) / 1000000000d;
+         return documents.get() + " docs (" + failures.get() + " failed, " + timeouts.get() + " timed out), "
+               + String.format("%.1f docs/s per thread", documents.get() / seconds) + ", "
+               + (nanos.get() / docs / 1000000L) + " ms/doc, "
+               + (allocatedBytes.get() / docs / 1024L) + " KB allocated/doc, "
+               + (chars.get() / docs) + " chars/doc";
+      }
+   }
+
+   /** Raised when a document is not parsed before its deadline. */
+   public static class ParseTimeoutException extends TikaException{
+
+      private static final long serialVersionUID = 1L;
+
+      public ParseTimeoutException(String message){
+         super(message);
+      }
+   }
+
+   /** Raised when a parse is not even started because too many abandoned parses are still running. */
+   public static class ParseRejectedException extends TikaException{
+
+      private static final long serialVersionUID = 1L;
+
+      public ParseRejectedException(String message){
+         super(message);
+      }
+   }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import static junit.framework.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+/**
+ * Test case for S3ChunkedBuffer and S3BufferPool classes.
+ * @author laurent
+ */
+public class S3ChunkedBufferTest {
+
+   @Test
+   public void shouldReadContentBackAndReuseChunks() throws Exception {
+      byte[] data = new byte[10500];
+      new Random(42).nextBytes(data);
+      S3BufferPool pool = new S3BufferPool(1000, 100000);
+
+      S3ChunkedBuffer buffer = S3ChunkedBuffer.read(new ByteArrayInputStream(data), data.length, pool);
+      assertEquals(data.length, buffer.length());
+      assertEquals(11, pool.getAllocatedChunks());
+      InputStream in = buffer.newInputStream();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] read = new byte[700];
+      int len;
+      while ((len = in.read(read)) > 0){
+         out.write(read, 0, len);
+      }
+      assertTrue(Arrays.equals(data, out.toByteArray()));
+      in.close();
+      assertEquals(11, pool.getPooledChunks());
+
+      // Second content is held into recycled chunks.
+      S3ChunkedBuffer.read(new ByteArrayInputStream(data), data.length, pool).close();
+      assertEquals(11, pool.getAllocatedChunks());
+   }
+
+   @Test
+   public void shouldFailOnTruncatedContent() throws Exception {
+      S3BufferPool pool = new S3BufferPool(1000, 100000);
+      try {
+         S3ChunkedBuffer.read(new ByteArrayInputStream(new byte[1500]), 2000, pool);
+         fail("Truncated content should not be buffered");
+      } catch (IOException ioe){
+         assertEquals(2, pool.getPooledChunks());
+      }
+   }
+
+   @Test
+   public void shouldNotReadRecycledChunks() throws Exception {
+      S3BufferPool pool = new S3BufferPool(1000, 100000);
+      S3ChunkedBuffer buffer = S3ChunkedBuffer.read(new ByteArrayInputStream(new byte[1500]), 1500, pool);
+      InputStream in = buffer.newInputStream();
+      assertEquals(1000, in.read(new byte[1000]));
+
+      // Buffer closed by another thread, as when a parse is abandoned.
+      buffer.close();
+      try {
+         in.read(new byte[1000]);
+         fail("Released buffer should not be read");
+      } catch (IOException ioe){
+         assertEquals(2, pool.getPooledChunks());
+      }
+   }
+}
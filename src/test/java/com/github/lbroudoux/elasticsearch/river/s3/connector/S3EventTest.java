@@ -0,0 +1,111 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import static junit.framework.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+/**
+ * Test case for S3Event class and S3FileEventSource.
+ * @author laurent
+ */
+public class S3EventTest {
+
+   private static final String NOTIFICATION = "{\"Records\":["
+         + "{\"eventName\":\"ObjectCreated:Put\",\"eventTime\":\"2015-06-01T10:00:00.000Z\","
+         + "\"s3\":{\"bucket\":{\"name\":\"mybucket\"},\"object\":{\"key\":\"Work/my+doc.pdf\",\"size\":1024,"
+         + "\"eTag\":\"d41d8cd98f00b204e9800998ecf8427e\",\"sequencer\":\"0055AED6DCD90281E5\"}}},"
+         + "{\"eventName\":\"ObjectRemoved:Delete\",\"eventTime\":\"2015-06-01T10:00:01.000Z\","
+         + "\"s3\":{\"bucket\":{\"name\":\"mybucket\"},\"object\":{\"key\":\"Work/my+doc.pdf\","
+         + "\"sequencer\":\"0055AED6DCD90281E6\"}}}]}";
+
+   @Test
+   public void shouldParseNotification() throws Exception {
+      List<S3Event> events = S3Event.fromNotification(NOTIFICATION);
+      assertEquals(2, events.size());
+      S3Event created = events.get(0);
+      assertEquals(S3Event.Type.CREATED, created.getType());
+      assertEquals("mybucket", created.getBucket());
+      assertEquals("Work/my+doc.pdf", created.getKey());
+      assertEquals(1024, created.toSummary().getSize());
+      assertEquals(1433152800000L, created.toSummary().getLastModified().getTime());
+      assertEquals(S3Event.Type.REMOVED, events.get(1).getType());
+      assertTrue(events.get(1).isAfter(created));
+      assertFalse(created.isAfter(events.get(1)));
+
+      // Same notification published through SNS, then a test event.
+      String sns = "{\"Type\":\"Notification\",\"Message\":\"" + NOTIFICATION.replace("\"", "\\\"") + "\"}";
+      assertEquals(2, S3Event.fromNotification(sns).size());
+      assertTrue(S3Event.fromNotification("{\"Service\":\"Amazon S3\",\"Event\":\"s3:TestEvent\"}").isEmpty());
+   }
+
+   @Test
+   public void shouldReceiveMessagesInOrderUntilAcknowledged() throws Exception {
+      File directory = Files.createTempDirectory("s3-events").toFile();
+      S3FileEventSource source = new S3FileEventSource(directory, 200);
+      assertTrue(source.receive(10, 0).isEmpty());
+      source.offer("first");
+      source.offer("second");
+
+      List<S3EventMessage> messages = source.receive(1, 0);
+      assertEquals(1, messages.size());
+      assertEquals("first", messages.get(0).getBody());
+      source.acknowledge(messages.get(0));
+
+      messages = source.receive(10, 0);
+      assertEquals(1, messages.size());
+      assertEquals("second", messages.get(0).getBody());
+      // Not acknowledged, hidden for visibility timeout and then received again.
+      assertTrue(source.receive(10, 0).isEmpty());
+      assertEquals(1, source.receive(10, 1000).size());
+      source.acknowledge(messages.get(0));
+      assertTrue(source.receive(10, 100).isEmpty());
+      directory.delete();
+   }
+
+   @Test
+   public void shouldNotBlockFollowingMessagesWithUnacknowledgedOne() throws Exception {
+      File directory = Files.createTempDirectory("s3-events").toFile();
+      S3FileEventSource source = new S3FileEventSource(directory, 60000);
+      source.offer("poison");
+      source.offer("second");
+      source.offer("third");
+
+      // First message keeps on failing, following ones should still be received.
+      List<S3EventMessage> messages = source.receive(1, 0);
+      assertEquals("poison", messages.get(0).getBody());
+      messages = source.receive(1, 0);
+      assertEquals("second", messages.get(0).getBody());
+      source.acknowledge(messages.get(0));
+      messages = source.receive(10, 0);
+      assertEquals(1, messages.size());
+      assertEquals("third", messages.get(0).getBody());
+      source.acknowledge(messages.get(0));
+      assertTrue(source.receive(10, 0).isEmpty());
+
+      for (File file : directory.listFiles()){
+         file.delete();
+      }
+      directory.delete();
+   }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import static junit.framework.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+/**
+ * Test case for S3InventoryReader class.
+ * @author laurent
+ */
+public class S3InventoryReaderTest {
+
+   @Test
+   public void shouldPickRowsOfLatestLocalReport() throws Exception {
+      File configuration = Files.createTempDirectory("s3-inventory").toFile();
+      try {
+         writeManifest(configuration, "2016-11-05T21-32Z", 1478381520000L);
+         writeManifest(configuration, "2016-11-06T21-32Z", 1478467920000L);
+         new File(configuration, "data").mkdirs();
+         OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(configuration, "data/part1.csv.gz")));
+         out.write(("\"mybucket\",\"Work/old.pdf\",\"10\",\"2016-11-01T10:00:00.000Z\",\"etag1\"\n"
+               + "\"mybucket\",\"Work/my+new.pdf\",\"20\",\"2016-11-06T10:00:00.000Z\",\"etag2\"\n"
+               + "\"mybucket\",\"Other/new.pdf\",\"30\",\"2016-11-06T10:00:00.000Z\",\"etag3\"\n").getBytes("UTF-8"));
+         out.close();
+
+         S3InventoryReader reader = new S3InventoryReader(null, configuration.getPath());
+         S3InventoryManifest manifest = reader.readManifest();
+         assertTrue(reader.getManifestLocation().contains("2016-11-06T21-32Z"));
+         assertEquals(1478467920000L, manifest.getCreationTimestamp());
+         assertEquals("inventory", manifest.getDestinationBucket());
+
+         final List<S3ObjectSummary> picked = new ArrayList<S3ObjectSummary>();
+         final List<String> keys = new ArrayList<String>();
+         long[] counts = reader.readDataFile(manifest, manifest.getFiles().get(0), "Work/", 1478001600000L, true,
+               new S3ObjectSummaryListener(){
+            @Override
+            public void onPickedSummaries(List<S3ObjectSummary> summaries){
+               picked.addAll(summaries);
+            }
+            @Override
+            public void onListedKeys(List<String> listedKeys){
+               keys.addAll(listedKeys);
+            }
+         });
+         assertEquals(2, counts[0]);
+         assertEquals(1, counts[1]);
+         assertEquals(2, keys.size());
+         assertEquals("Work/my+new.pdf", picked.get(0).getKey());
+         assertEquals(20, picked.get(0).getSize());
+         assertEquals("etag2", picked.get(0).getETag());
+      } finally {
+         deleteRecursively(configuration);
+      }
+   }
+
+   @Test
+   public void shouldSplitQuotedCsvFields(){
+      List<String> fields = S3InventoryReader.parseCsvLine("\"a,b\",\"c\"\"d\",,e");
+      assertEquals(4, fields.size());
+      assertEquals("a,b", fields.get(0));
+      assertEquals("c\"d", fields.get(1));
+      assertEquals("", fields.get(2));
+      assertEquals("e", fields.get(3));
+   }
+
+   private void writeManifest(File configuration, String report, long creationTimestamp) throws Exception {
+      File folder = new File(configuration, report);
+      folder.mkdirs();
+      String manifest = "{\"sourceBucket\":\"mybucket\",\"destinationBucket\":\"arn:aws:s3:::inventory\","
+            + "\"fileFormat\":\"CSV\",\"fileSchema\":\"Bucket, Key, Size, LastModifiedDate, ETag\","
+            + "\"creationTimestamp\":\"" + creationTimestamp + "\","
+            + "\"files\":[{\"key\":\"mybucket/config/data/part1.csv.gz\",\"size\":100}]}";
+      Files.write(new File(folder, "manifest.json").toPath(), manifest.getBytes("UTF-8"));
+   }
+
+   private static void deleteRecursively(File file){
+      File[] children = file.listFiles();
+      if (children != null){
+         for (File child : children){
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.connector;
+
+import static junit.framework.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+/**
+ * Test case for S3RangedDownload class.
+ * @author laurent
+ */
+public class S3RangedDownloadTest {
+
+   @Test
+   public void shouldReassembleRangesInOrder() throws Exception {
+      final byte[] data = new byte[100000];
+      new Random(42).nextBytes(data);
+      // Serves byte ranges of data, as S3 would.
+      AmazonS3Client s3Client = new AmazonS3Client(new BasicAWSCredentials("access", "secret")){
+         @Override
+         public S3Object getObject(GetObjectRequest request){
+            assertEquals("etag", request.getMatchingETagConstraints().get(0));
+            long[] range = request.getRange();
+            int length = (int)(range[1] - range[0] + 1);
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(length);
+            metadata.setContentType("application/pdf");
+            S3Object object = new S3Object();
+            object.setObjectMetadata(metadata);
+            object.setObjectContent(new ByteArrayInputStream(data, (int)range[0], length));
+            return object;
+         }
+      };
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try {
+         S3RangedDownload download = new S3RangedDownload(s3Client, executor, 7000, 3);
+         S3ObjectContent content = download.download("mybucket", "Work/mydoc.pdf", data.length, "etag");
+         assertEquals(data.length, content.getContentLength());
+         assertEquals("application/pdf", content.getMetadata().getContentType());
+
+         InputStream in = content.getInputStream();
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[4096];
+         int len;
+         while ((len = in.read(buffer)) > 0){
+            out.write(buffer, 0, len);
+         }
+         content.close();
+         assertTrue(Arrays.equals(data, out.toByteArray()));
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.XHTMLContentHandler;
+import org.junit.Test;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+/**
+ * Test case for S3AttachmentExtractor class.
+ * @author laurent
+ */
+public class S3AttachmentExtractorTest {
+
+   /** A mail like container: a text body part without name and two named attachments. */
+   private static final String CONTAINER = ":Body part\nfirst.txt:First attachment\nsecond.txt:Second attachment\n";
+
+   @Test
+   public void shouldSpoolAttachmentsAndParseBodyPartsInline() throws Exception {
+      ParseContext context = new ParseContext();
+      context.set(Parser.class, TikaHolder.tika().getParser());
+      S3AttachmentExtractor extractor = new S3AttachmentExtractor(context);
+      BodyContentHandler handler = new BodyContentHandler();
+      new ContainerParser().parse(new ByteArrayInputStream(CONTAINER.getBytes("UTF-8")), handler, new Metadata(), context);
+
+      assertTrue(handler.toString().contains("Body part"));
+      assertFalse(handler.toString().contains("First attachment"));
+      List<S3AttachmentExtractor.Attachment> attachments = extractor.takeAttachments();
+      try {
+         assertEquals(2, attachments.size());
+         assertEquals("first.txt", attachments.get(0).getName());
+         assertEquals("First attachment", new String(Files.readAllBytes(attachments.get(0).getFile().toPath()), "UTF-8"));
+         assertEquals("second.txt", attachments.get(1).getName());
+      } finally {
+         for (S3AttachmentExtractor.Attachment attachment : attachments){
+            attachment.delete();
+         }
+      }
+   }
+
+   @Test
+   public void shouldDiscardAttachmentsFoundOnceTaken() throws Exception {
+      S3AttachmentExtractor extractor = new S3AttachmentExtractor(new ParseContext());
+      Metadata metadata = new Metadata();
+      metadata.set(Metadata.RESOURCE_NAME_KEY, "first.txt");
+      extractor.parseEmbedded(new ByteArrayInputStream("First".getBytes("UTF-8")), new BodyContentHandler(), metadata, false);
+      List<S3AttachmentExtractor.Attachment> attachments = extractor.takeAttachments();
+      assertEquals(1, attachments.size());
+      assertTrue(attachments.get(0).getFile().exists());
+
+      // Container parse is over, later attachments are dropped.
+      metadata = new Metadata();
+      metadata.set(Metadata.RESOURCE_NAME_KEY, "second.txt");
+      extractor.parseEmbedded(new ByteArrayInputStream("Second".getBytes("UTF-8")), new BodyContentHandler(), metadata, false);
+      assertEquals(1, extractor.takeAttachments().size());
+
+      extractor.discard();
+      assertFalse(attachments.get(0).getFile().exists());
+   }
+
+   /** Parser of test containers, one embedded document per "name:content" line. */
+   private static class ContainerParser extends AbstractParser{
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Set<MediaType> getSupportedTypes(ParseContext context){
+         return Collections.singleton(MediaType.text("x-container"));
+      }
+
+      @Override
+      public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+            throws IOException, SAXException, TikaException{
+         EmbeddedDocumentExtractor extractor = context.get(EmbeddedDocumentExtractor.class);
+         XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
+         xhtml.startDocument();
+         BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+         String line;
+         while ((line = reader.readLine()) != null){
+            int colon = line.indexOf(':');
+            Metadata embeddedMetadata = new Metadata();
+            embeddedMetadata.set(Metadata.CONTENT_TYPE, "text/plain");
+            if (colon > 0){
+               embeddedMetadata.set(Metadata.RESOURCE_NAME_KEY, line.substring(0, colon));
+            }
+            extractor.parseEmbedded(new ByteArrayInputStream(line.substring(colon + 1).getBytes("UTF-8")),
+                  xhtml, embeddedMetadata, false);
+         }
+         xhtml.endDocument();
+      }
+   }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+/**
+ * Test case for S3BulkController class.
+ * @author laurent
+ */
+public class S3BulkControllerTest {
+
+   @Test
+   public void shouldShrinkAndRetryOnRejections() {
+      S3BulkController controller = new S3BulkController(100, 1000);
+      BulkRequest request = new BulkRequest()
+            .add(new IndexRequest("index", "doc", "1").source("field", "value1"))
+            .add(new IndexRequest("index", "doc", "2").source("field", "value2"));
+      BulkResponse response = new BulkResponse(new BulkItemResponse[]{
+            new BulkItemResponse(0, "index", new IndexResponse("index", "doc", "1", 1, true)),
+            new BulkItemResponse(1, "index", new BulkItemResponse.Failure("index", "doc", "2",
+                  "EsRejectedExecutionException[rejected execution]", RestStatus.TOO_MANY_REQUESTS))}, 10);
+
+      controller.afterBulk(request, response, 100);
+      assertEquals(50, controller.getBulkActions());
+      assertTrue(controller.getDelayMillis() > 0);
+      assertEquals(1, controller.getRejectedActions());
+      assertTrue(controller.hasRetries());
+      assertEquals("2", ((IndexRequest)controller.takeRetries().get(0).getRequest()).id());
+      assertFalse(controller.hasRetries());
+   }
+
+   @Test
+   public void shouldGrowBackWhenBulksAreFast() {
+      S3BulkController controller = new S3BulkController(100, 1000);
+      controller.afterBulk(new BulkRequest(), new RuntimeException("node disconnected"));
+      assertEquals(100, controller.getBulkActions());
+      controller.afterBulk(new BulkRequest(), new EsRejectedExecutionException("rejected execution"));
+      assertEquals(50, controller.getBulkActions());
+      BulkResponse ok = new BulkResponse(new BulkItemResponse[0], 10);
+      for (int i = 0; i < 20; i++){
+         controller.afterBulk(new BulkRequest(), ok, 100);
+      }
+      assertEquals(100, controller.getBulkActions());
+      assertEquals(0, controller.getDelayMillis());
+
+      // Slow bulks should shrink bulk size.
+      controller.afterBulk(new BulkRequest(), ok, 5000);
+      assertEquals(75, controller.getBulkActions());
+   }
+
+   @Test
+   public void shouldAskForFlushWhenBulkIsFull() {
+      S3BulkController controller = new S3BulkController(3, 1000);
+      assertFalse(controller.added());
+      assertFalse(controller.added());
+      assertTrue(controller.added());
+      controller.beforeBulk();
+      assertFalse(controller.added());
+   }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+/**
+ * Test case for S3IndexingPipeline class.
+ * @author laurent
+ */
+public class S3IndexingPipelineTest {
+
+   @Test
+   public void shouldFailPendingTasksWhenClosed() throws Exception {
+      final CountDownLatch fetching = new CountDownLatch(1);
+      final List<S3IndexingTask> failed = new CopyOnWriteArrayList<S3IndexingTask>();
+      S3IndexingPipeline pipeline = new S3IndexingPipeline(new S3IndexingPipeline.Stages(){
+         @Override
+         public boolean fetch(S3IndexingTask task) throws Exception{
+            fetching.countDown();
+            // Blocks until pipeline is closed.
+            Thread.sleep(60000);
+            return true;
+         }
+
+         @Override
+         public boolean parse(S3IndexingTask task) throws Exception{
+            return true;
+         }
+
+         @Override
+         public void submit(S3IndexingTask task) throws Exception{
+         }
+
+         @Override
+         public void failed(S3IndexingTask task, Throwable t){
+            failed.add(task);
+         }
+      }, 1, 1, 10, Executors.defaultThreadFactory());
+
+      for (int i = 0; i < 4; i++){
+         pipeline.index(new S3IndexingTask(new S3ObjectSummary()));
+      }
+      assertTrue(fetching.await(5, TimeUnit.SECONDS));
+      pipeline.close();
+
+      // Running task is interrupted, queued ones are dropped: all of them are failed.
+      pipeline.awaitCompletion();
+      assertEquals(4, failed.size());
+      assertEquals(4, pipeline.getFailedCount());
+   }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+/**
+ * Test case for S3KeyDigestSet class.
+ * @author laurent
+ */
+public class S3KeyDigestSetTest {
+
+   @Test
+   public void shouldContainAddedDigests() throws Exception {
+      S3KeyDigestSet set = new S3KeyDigestSet();
+      assertTrue(set.add(S3RiverUtil.digestS3Key("Work/mydoc.pdf")));
+      assertTrue(set.add(S3RiverUtil.digestS3Key("Work/mymovie.mkv")));
+      assertFalse(set.add(S3RiverUtil.digestS3Key("Work/mydoc.pdf")));
+      assertEquals(2, set.size());
+      assertTrue(set.contains(S3RiverUtil.digestS3Key("Work/mydoc.pdf")));
+      assertFalse(set.contains(S3RiverUtil.digestS3Key("Work/other.pdf")));
+   }
+
+   @Test
+   public void shouldGrowAndKeepDigests() throws Exception {
+      S3KeyDigestSet set = new S3KeyDigestSet(4);
+      for (int i = 0; i < 10000; i++){
+         set.add(S3RiverUtil.digestS3Key("key-" + i));
+      }
+      assertEquals(10000, set.size());
+      for (int i = 0; i < 10000; i++){
+         assertTrue(set.contains(S3RiverUtil.digestS3Key("key-" + i)));
+      }
+      assertFalse(set.contains(S3RiverUtil.digestS3Key("key-10000")));
+   }
+
+   @Test
+   public void shouldIterateOverDigests() throws Exception {
+      S3KeyDigestSet set = new S3KeyDigestSet();
+      byte[] zero = new byte[S3KeyDigestSet.DIGEST_LENGTH];
+      byte[] digest = S3RiverUtil.digestS3Key("Work/mydoc.pdf");
+      set.add(zero);
+      set.add(digest);
+      assertEquals(2, set.size());
+
+      int count = 0;
+      boolean zeroFound = false, digestFound = false;
+      for (Iterator<byte[]> it = set.iterator(); it.hasNext(); count++){
+         byte[] current = it.next();
+         zeroFound |= Arrays.equals(zero, current);
+         digestFound |= Arrays.equals(digest, current);
+      }
+      assertEquals(2, count);
+      assertTrue(zeroFound);
+      assertTrue(digestFound);
+   }
+
+   @Test
+   public void shouldNotContainMalformedDigest() {
+      S3KeyDigestSet set = new S3KeyDigestSet();
+      assertFalse(set.contains(new byte[12]));
+      assertFalse(set.contains(null));
+   }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.tika.metadata.Metadata;
+import org.junit.Test;
+/**
+ * Test case for S3ParseCache class.
+ * @author laurent
+ */
+public class S3ParseCacheTest {
+
+   @Test
+   public void shouldRetrieveCachedParseResult() throws Exception {
+      File directory = createTempDirectory();
+      try {
+         S3ParseCache cache = new S3ParseCache(directory, 1024 * 1024);
+         Metadata metadata = new Metadata();
+         metadata.set(Metadata.CONTENT_TYPE, "application/pdf");
+         metadata.add("Author", "laurent");
+         metadata.add("Author", "jacob");
+         cache.put("etag", 1234L, 100, "Hello world", metadata);
+
+         Metadata cachedMetadata = new Metadata();
+         assertEquals("Hello world", cache.get("etag", 1234L, 100, cachedMetadata));
+         assertEquals("application/pdf", cachedMetadata.get(Metadata.CONTENT_TYPE));
+         assertEquals(2, cachedMetadata.getValues("Author").length);
+         assertNull(cache.get("etag", 1235L, 100, new Metadata()));
+         assertNull(cache.get("etag", 1234L, 200, new Metadata()));
+         assertEquals(1, cache.getHits());
+         assertEquals(2, cache.getMisses());
+
+         // Entries should survive cache reopening.
+         cache = new S3ParseCache(directory, 1024 * 1024);
+         assertEquals("Hello world", cache.get("etag", 1234L, 100, new Metadata()));
+      } finally {
+         deleteRecursively(directory);
+      }
+   }
+
+   @Test
+   public void shouldEvictLeastRecentlyUsedEntries() throws Exception {
+      File directory = createTempDirectory();
+      try {
+         S3ParseCache cache = new S3ParseCache(directory, 1024);
+         // Random text so that entries are not compressed to nothing.
+         Random random = new Random(42);
+         StringBuilder text = new StringBuilder();
+         for (int i = 0; i < 500; i++){
+            text.append((char)('a' + random.nextInt(26)));
+         }
+         cache.put("etag-1", 1L, 100, text.toString() + 1, new Metadata());
+         cache.put("etag-2", 1L, 100, text.toString() + 2, new Metadata());
+         assertNotNull(cache.get("etag-1", 1L, 100, new Metadata()));
+         for (int i = 3; i < 10; i++){
+            cache.put("etag-" + i, 1L, 100, text.toString() + i, new Metadata());
+            assertTrue(cache.getTotalBytes() <= 1024);
+         }
+         assertNull(cache.get("etag-2", 1L, 100, new Metadata()));
+         assertNotNull(cache.get("etag-9", 1L, 100, new Metadata()));
+      } finally {
+         deleteRecursively(directory);
+      }
+   }
+
+   private static File createTempDirectory() throws Exception {
+      File directory = File.createTempFile("parse-cache", "");
+      directory.delete();
+      directory.mkdirs();
+      return directory;
+   }
+
+   private static void deleteRecursively(File file){
+      File[] children = file.listFiles();
+      if (children != null){
+         for (File child : children){
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tika.mime.MediaType;
+import org.junit.Test;
+/**
+ * Test case for S3ParseRouter class.
+ * @author laurent
+ */
+public class S3ParseRouterTest {
+
+   @Test
+   public void shouldFindMostSpecificPolicy() {
+      Map<String, String> policies = new HashMap<String, String>();
+      policies.put("image/*", "metadata");
+      policies.put("image/svg+xml", "full");
+      policies.put("video/*", "skip");
+      S3ParseRouter router = new S3ParseRouter(TikaHolder.tika().getDetector(), policies);
+      assertTrue(router.isEnabled());
+      assertEquals(S3ParseRouter.Policy.METADATA, router.policyFor(MediaType.image("jpeg")));
+      assertEquals(S3ParseRouter.Policy.FULL, router.policyFor(MediaType.image("svg+xml")));
+      assertEquals(S3ParseRouter.Policy.SKIP, router.policyFor(MediaType.video("mp4")));
+      assertEquals(S3ParseRouter.Policy.FULL, router.policyFor(MediaType.application("pdf")));
+
+      policies.put("*", "skip");
+      router = new S3ParseRouter(TikaHolder.tika().getDetector(), policies);
+      assertEquals(S3ParseRouter.Policy.SKIP, router.policyFor(MediaType.application("pdf")));
+   }
+
+   @Test
+   public void shouldDetectTypeFromNameOrContent() throws Exception {
+      S3ParseRouter router = new S3ParseRouter(TikaHolder.tika().getDetector(), new HashMap<String, String>());
+      assertFalse(router.isEnabled());
+      assertEquals(MediaType.application("pdf"), router.detect("Work/mydoc.pdf", null, null));
+      assertEquals(MediaType.OCTET_STREAM, router.detect("Work/mydoc", null, null));
+      assertEquals(MediaType.application("pdf"), router.detect("Work/mydoc", "binary/octet-stream",
+            new ByteArrayInputStream("%PDF-1.4\n".getBytes())));
+   }
+}
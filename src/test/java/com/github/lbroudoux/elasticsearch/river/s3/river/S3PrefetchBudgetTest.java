@@ -0,0 +1,58 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+/**
+ * Test case for S3PrefetchBudget class.
+ * @author laurent
+ */
+public class S3PrefetchBudgetTest {
+
+   @Test
+   public void shouldBoundBytesInFlight() throws Exception {
+      final S3PrefetchBudget budget = new S3PrefetchBudget(100);
+      long first = budget.acquire(60);
+      assertEquals(60, first);
+      // Larger than budget, reserved as the whole budget.
+      assertEquals(100, new S3PrefetchBudget(100).acquire(500));
+
+      final CountDownLatch acquired = new CountDownLatch(1);
+      Thread fetcher = new Thread(){
+         @Override
+         public void run(){
+            try {
+               budget.acquire(50);
+               acquired.countDown();
+            } catch (InterruptedException ie){
+            }
+         }
+      };
+      fetcher.start();
+      assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+      budget.release(first);
+      assertTrue(acquired.await(5, TimeUnit.SECONDS));
+      assertEquals(50, budget.getInFlight());
+   }
+}
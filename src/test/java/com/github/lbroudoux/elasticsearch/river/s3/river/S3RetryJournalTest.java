@@ -0,0 +1,137 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+/**
+ * Test case for S3RetryJournal class.
+ * @author laurent
+ */
+public class S3RetryJournalTest {
+
+   @Test
+   public void shouldReplayFailedActionsAfterBackoff() throws Exception {
+      File file = File.createTempFile("s3-river", ".retry");
+      file.deleteOnExit();
+      S3RetryJournal journal = new S3RetryJournal(file, 1000);
+      journal.append(new S3RetryJournal.Origin("Work/mydoc.pdf", 0).failed(false, "docs", "doc", "id1", 10000));
+      journal.append(new S3RetryJournal.Origin(null, 0).failed(true, "docs", "doc", "id2", 10000));
+      journal.append(new S3RetryJournal.Origin("Work/mydoc.pdf", 2).failed(false, "docs", "doc", "id1", 10000));
+      journal.close();
+
+      // Entries should survive reopening, second failure of id1 needs 4 seconds of backoff.
+      journal = new S3RetryJournal(file, 1000);
+      List<S3RetryJournal.Entry> due = journal.takeDue(11000);
+      assertEquals(1, due.size());
+      assertTrue(due.get(0).isDelete());
+      assertEquals("id2", due.get(0).getId());
+      assertNull(due.get(0).getKey());
+
+      due = journal.takeDue(14000);
+      assertEquals(1, due.size());
+      assertFalse(due.get(0).isDelete());
+      assertEquals("Work/mydoc.pdf", due.get(0).getKey());
+      assertEquals(3, due.get(0).getAttempts());
+      assertEquals(0, journal.takeDue(100000).size());
+      journal.close();
+   }
+
+   @Test
+   public void shouldGrowBackoffExponentially() throws Exception {
+      File file = File.createTempFile("s3-river", ".retry");
+      file.deleteOnExit();
+      S3RetryJournal journal = new S3RetryJournal(file, 1000);
+      assertEquals(1000, journal.backoffFor(1));
+      assertEquals(2000, journal.backoffFor(2));
+      assertEquals(8000, journal.backoffFor(4));
+      assertEquals(60 * 60 * 1000, journal.backoffFor(100));
+      journal.close();
+   }
+
+   @Test
+   public void shouldStayWritableWhenCompactionFails() throws Exception {
+      File file = File.createTempFile("s3-river", ".retry");
+      file.deleteOnExit();
+      // A directory in place of compacted journal makes compaction fail.
+      File compacted = new File(file.getPath() + ".tmp");
+      assertTrue(compacted.mkdir());
+      S3RetryJournal journal = new S3RetryJournal(file, 1000);
+      try {
+         journal.append(new S3RetryJournal.Origin(null, 0).failed(true, "docs", "doc", "id1", 10000));
+         try {
+            journal.takeDue(20000);
+            fail("Compaction should fail");
+         } catch (IOException ioe) {
+            // Expected.
+         }
+         assertTrue(compacted.delete());
+
+         journal.append(new S3RetryJournal.Origin(null, 0).failed(true, "docs", "doc", "id2", 10000));
+         assertEquals(2, journal.takeDue(20000).size());
+      } finally {
+         journal.close();
+         compacted.delete();
+      }
+   }
+
+   @Test
+   public void shouldKeepTakenEntriesUntilAcknowledged() throws Exception {
+      File file = File.createTempFile("s3-river", ".retry");
+      file.deleteOnExit();
+      S3RetryJournal journal = new S3RetryJournal(file, 1000);
+      journal.append(new S3RetryJournal.Origin("Work/mydoc.pdf", 0).failed(false, "docs", "doc", "id1", 10000));
+      journal.append(new S3RetryJournal.Origin(null, 0).failed(true, "docs", "doc", "id2", 10000));
+      assertEquals(2, journal.takeDue(20000).size());
+      // Taken entries are not taken again while they are replayed.
+      assertEquals(0, journal.takeDue(20000).size());
+      journal.close();
+
+      // River stopped before replays were over: entries are still there.
+      journal = new S3RetryJournal(file, 1000);
+      List<S3RetryJournal.Entry> due = journal.takeDue(20000);
+      assertEquals(2, due.size());
+      assertEquals("id1", due.get(0).getId());
+      assertEquals("id2", due.get(1).getId());
+
+      // First one succeeds, second one fails again.
+      journal.ack(due.get(0));
+      journal.append(due.get(1).toOrigin().failed(true, "docs", "doc", "id2", 30000));
+      // Acknowledging a replayed entry does not remove a newer failure.
+      journal.ack(due.get(1));
+      journal.close();
+
+      journal = new S3RetryJournal(file, 1000);
+      due = journal.takeDue(40000);
+      assertEquals(1, due.size());
+      assertEquals("id2", due.get(0).getId());
+      assertEquals(2, due.get(0).getAttempts());
+      journal.ack(due.get(0));
+      journal.close();
+
+      journal = new S3RetryJournal(file, 1000);
+      assertEquals(0, journal.takeDue(100000).size());
+      journal.close();
+   }
+}
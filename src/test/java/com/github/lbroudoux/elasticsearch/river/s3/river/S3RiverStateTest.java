@@ -0,0 +1,69 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+/**
+ * Test case for S3RiverState class.
+ * @author laurent
+ */
+public class S3RiverStateTest {
+
+   @Test
+   public void shouldReadBackCheckpointedState() throws Exception {
+      S3RiverState state = new S3RiverState(null, "mys3docs", "docs");
+      Map<String, Object> source = XContentHelper.convertToMap(
+            state.toXContent(1400000000000L, "Work/mydoc.pdf", false).bytes(), false).v2();
+
+      S3RiverState read = new S3RiverState(null, "mys3docs", "docs");
+      read.readFrom(source);
+      assertEquals(Long.valueOf(1400000000000L), read.getLastScanTime());
+      assertEquals("Work/mydoc.pdf", read.getInitialScanBookmark());
+      assertFalse(read.isInitialScanFinished());
+      assertEquals(-1, read.getVersion());
+      // State of previous versions does not record id scheme.
+      assertTrue(read.isIdMigrationNeeded());
+
+      state.idsMigrated();
+      read.readFrom(XContentHelper.convertToMap(
+            state.toXContent(1400000000000L, null, true).bytes(), false).v2());
+      assertFalse(read.isIdMigrationNeeded());
+   }
+
+   @Test
+   public void shouldToleratePartialState() throws Exception {
+      Map<String, Object> fields = new HashMap<String, Object>();
+      fields.put(S3RiverState.LAST_SCAN_TIME_FIELD, "not a long");
+      fields.put(S3RiverState.INITIAL_SCAN_FINISHED_FIELD, true);
+      Map<String, Object> source = new HashMap<String, Object>();
+      source.put("amazon-s3", fields);
+
+      S3RiverState state = new S3RiverState(null, "mys3docs", "docs");
+      state.readFrom(source);
+      assertNull(state.getLastScanTime());
+      assertNull(state.getInitialScanBookmark());
+      assertTrue(state.isInitialScanFinished());
+   }
+}
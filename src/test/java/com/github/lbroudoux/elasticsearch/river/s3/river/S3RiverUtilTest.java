@@ -81,4 +81,25 @@ public class S3RiverUtilTest {
       // mymovie in exclusions.
       assertFalse(S3RiverUtil.isIndexable("mymovie.mkv", includes, excludes));
    }
+
+   @Test
+   public void shouldBuildDigestBackFromIndexId() throws Exception {
+      byte[] digest = S3RiverUtil.digestS3Key("Work/mydoc.pdf");
+      String id = S3RiverUtil.buildIndexIdFromDigest(digest);
+      assertEquals(-1, id.indexOf('/'));
+      assertEquals(-1, id.indexOf('='));
+      assertTrue(Arrays.equals(digest, S3RiverUtil.buildDigestFromIndexId(id)));
+   }
+
+   @Test
+   public void shouldDigestKeyTheSameWayWhateverItsEncoding() throws Exception {
+      // As listed with encoding-type=url, as notified by an event, as written into an inventory report.
+      byte[] listed = S3RiverUtil.digestEncodedS3Key("Work/my%20doc%C3%A9.pdf");
+      byte[] notified = S3RiverUtil.digestEncodedS3Key("Work/my+doc%C3%A9.pdf");
+      byte[] inventoried = S3RiverUtil.digestEncodedS3Key("Work%2Fmy%20doc%C3%A9.pdf");
+      assertTrue(Arrays.equals(listed, notified));
+      assertTrue(Arrays.equals(listed, inventoried));
+      // Ids of keys having nothing to encode are kept.
+      assertTrue(Arrays.equals(S3RiverUtil.digestS3Key("Work/mydoc.pdf"), S3RiverUtil.digestEncodedS3Key("Work/mydoc.pdf")));
+   }
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.Test;
+/**
+ * Test case for TikaForkParserEngine class, worker side and node side handlers being chained
+ * without launching a worker JVM.
+ * @author laurent
+ */
+public class TikaForkParserEngineTest {
+
+   private static final String TEXT = "Some rather long text";
+
+   @Test
+   public void shouldSendMetadataBackAndTruncateText() throws Exception {
+      TikaForkParserEngine.TruncatingWriter writer = new TikaForkParserEngine.TruncatingWriter(4);
+      Metadata workerMetadata = new Metadata();
+      Metadata metadata = new Metadata();
+      metadata.set(Metadata.RESOURCE_NAME_KEY, "mynote.txt");
+      TikaForkParserEngine.MetadataSendingParser parser =
+            new TikaForkParserEngine.MetadataSendingParser(TikaHolder.tika().getParser());
+      parser.parse(new ByteArrayInputStream(TEXT.getBytes("UTF-8")),
+            new TikaForkParserEngine.WorkerContentHandler(new BodyContentHandler(writer), workerMetadata),
+            metadata, new ParseContext());
+
+      assertTrue(workerMetadata.get(Metadata.CONTENT_TYPE).startsWith("text/plain"));
+      assertNotNull(workerMetadata.get(Metadata.CONTENT_ENCODING));
+      assertEquals("Some", writer.toString());
+   }
+
+   @Test
+   public void shouldDiscardWorkerOfAbandonedParse() throws Exception {
+      TikaForkParserEngine.WorkerContentHandler handler = new TikaForkParserEngine.WorkerContentHandler(
+            new BodyContentHandler(new StringWriter()), new Metadata());
+      Thread.currentThread().interrupt();
+      try {
+         handler.characters("text".toCharArray(), 0, 4);
+         fail("Abandoned parse should fail");
+      } catch (IllegalStateException ise) {
+         // Expected, fork parser closes worker on unchecked exceptions.
+      } finally {
+         Thread.interrupted();
+      }
+   }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to Laurent Broudoux (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.lbroudoux.elasticsearch.river.s3.river;
+
+import static junit.framework.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.junit.Test;
+/**
+ * Test case for TikaParserEngine class.
+ * @author laurent
+ */
+public class TikaParserEngineTest {
+
+   @Test
+   public void shouldRejectParsesWhileTooManyAreAbandoned() throws Exception {
+      final CountDownLatch hung = new CountDownLatch(1);
+      TikaParserEngine engine = new TikaParserEngine(null, null, null, 100){
+         @Override
+         protected String parse(InputStream stream, Metadata metadata, int maxChars, ParseContext context)
+               throws IOException, TikaException{
+            try {
+               // Ignore interruption, as a pathological parser would do.
+               while (hung.getCount() > 0){
+                  try {
+                     hung.await();
+                  } catch (InterruptedException ie){
+                     // Go on waiting.
+                  }
+               }
+            } finally {
+               stream.close();
+            }
+            return "parsed";
+         }
+      };
+      engine.setMaxAbandonedParses(1);
+
+      try {
+         engine.parseToString(new ByteArrayInputStream(new byte[0]), new Metadata(), 100, 50, null);
+         fail("Parse should time out");
+      } catch (TikaParserEngine.ParseTimeoutException pte) {
+         // Expected.
+      }
+      assertEquals(1, engine.getAbandonedParses());
+      try {
+         engine.parseToString(new ByteArrayInputStream(new byte[0]), new Metadata(), 100, 50, null);
+         fail("Parse should be rejected");
+      } catch (TikaParserEngine.ParseRejectedException pre) {
+         // Expected.
+      }
+
+      // Once abandoned parse is over, parses go on.
+      hung.countDown();
+      for (int i = 0; i < 100 && engine.getAbandonedParses() > 0; i++){
+         Thread.sleep(10);
+      }
+      assertEquals(0, engine.getAbandonedParses());
+      assertEquals("parsed", engine.parseToString(new ByteArrayInputStream(new byte[0]), new Metadata(), 100, 1000, null));
+   }
+}